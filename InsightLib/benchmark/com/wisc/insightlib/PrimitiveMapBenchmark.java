@@ -0,0 +1,165 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.HashMap;
+
+/**
+ * Compares IntLongHashMap and LongObjectHashMap with java.util.HashMap on the workloads of the
+ * library: counting events over a few hundred event IDs, as the event counter overflow table
+ * does, and starting and ending downloads by ID, as the download state map does. Each workload
+ * is run for a warmup pass and then timed over several passes; the mean time per operation is
+ * printed. A plain main() harness, as the library has no benchmark build.
+ *
+ * Not part of the library build. Run on a JVM with the library classes on the classpath:
+ *
+ * <pre>
+ * java -cp bin/classes:benchmark com.wisc.insightlib.PrimitiveMapBenchmark
+ * </pre>
+ */
+public class PrimitiveMapBenchmark {
+	private static final int NUM_EVENT_IDS = 300;
+	private static final int OPERATIONS = 2000000;
+	private static final int PASSES = 10;
+	private static final int MAX_DOWNLOADS_IN_FLIGHT = 32;
+
+	/**
+	 * Keeps the results alive, so that the timed loops aren't optimized away.
+	 */
+	private static long sink = 0;
+
+	public static void main(String[] args) {
+		int[] eventIDs = new int[OPERATIONS];
+		long seed = 42;
+
+		for (int i = 0; i < OPERATIONS; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			eventIDs[i] = 1000 + (int) ((seed >>> 33) % NUM_EVENT_IDS);
+		}
+
+		countWithIntLongMap(eventIDs);
+		countWithHashMap(eventIDs);
+		downloadsWithLongObjectMap();
+		downloadsWithHashMap();
+
+		report("Event counts, IntLongHashMap", timeCountWithIntLongMap(eventIDs));
+		report("Event counts, HashMap<Integer, Long>", timeCountWithHashMap(eventIDs));
+		report("Download states, LongObjectHashMap", timeDownloadsWithLongObjectMap());
+		report("Download states, HashMap<Long, Object>", timeDownloadsWithHashMap());
+
+		System.out.println("(sink " + sink + ")");
+	}
+
+	private static void report(String name, long nanos) {
+		System.out.println(name + ": " + (nanos * 1000 / ((long) PASSES * OPERATIONS)) / 1000.0
+				+ " nsec/op");
+	}
+
+	private static long timeCountWithIntLongMap(int[] eventIDs) {
+		long start = System.nanoTime();
+
+		for (int pass = 0; pass < PASSES; pass++) {
+			countWithIntLongMap(eventIDs);
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private static long timeCountWithHashMap(int[] eventIDs) {
+		long start = System.nanoTime();
+
+		for (int pass = 0; pass < PASSES; pass++) {
+			countWithHashMap(eventIDs);
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private static long timeDownloadsWithLongObjectMap() {
+		long start = System.nanoTime();
+
+		for (int pass = 0; pass < PASSES; pass++) {
+			downloadsWithLongObjectMap();
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private static long timeDownloadsWithHashMap() {
+		long start = System.nanoTime();
+
+		for (int pass = 0; pass < PASSES; pass++) {
+			downloadsWithHashMap();
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private static void countWithIntLongMap(int[] eventIDs) {
+		IntLongHashMap counts = new IntLongHashMap();
+
+		for (int i = 0; i < eventIDs.length; i++) {
+			counts.add(eventIDs[i], 1);
+		}
+
+		sink += counts.get(1000, 0);
+	}
+
+	private static void countWithHashMap(int[] eventIDs) {
+		HashMap<Integer, Long> counts = new HashMap<Integer, Long>();
+
+		for (int i = 0; i < eventIDs.length; i++) {
+			Long count = counts.get(eventIDs[i]);
+			counts.put(eventIDs[i], count == null ? 1 : count + 1);
+		}
+
+		sink += counts.get(1000);
+	}
+
+	/**
+	 * Start a download per operation, keeping up to MAX_DOWNLOADS_IN_FLIGHT of them, and end
+	 * the oldest one once the limit is reached.
+	 */
+	private static void downloadsWithLongObjectMap() {
+		LongObjectHashMap<Object> states = new LongObjectHashMap<Object>();
+		Object state = new Object();
+
+		for (long id = 0; id < OPERATIONS; id++) {
+			states.put(id, state);
+
+			if (id >= MAX_DOWNLOADS_IN_FLIGHT) {
+				if (states.remove(id - MAX_DOWNLOADS_IN_FLIGHT) != null) {
+					sink++;
+				}
+			}
+		}
+	}
+
+	private static void downloadsWithHashMap() {
+		HashMap<Long, Object> states = new HashMap<Long, Object>();
+		Object state = new Object();
+
+		for (long id = 0; id < OPERATIONS; id++) {
+			states.put(id, state);
+
+			if (id >= MAX_DOWNLOADS_IN_FLIGHT) {
+				if (states.remove(id - MAX_DOWNLOADS_IN_FLIGHT) != null) {
+					sink++;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,282 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks IntLongHashMap, IntDoubleHashMap and LongObjectHashMap against java.util.HashMap with
+ * random operations over a small key range, so that the keys collide, the tables resize and
+ * the removals shift the probe chains. After each round the maps are compared entry by entry,
+ * through get() and through the slot iteration. The backward shift of LongObjectHashMap.remove()
+ * is also checked on its own, with probe chains that collide and wrap around the end of the
+ * table. Exits with status 1 on the first mismatch.
+ *
+ * Not part of the library build. Run on a JVM with the library classes on the classpath:
+ *
+ * <pre>
+ * java -cp bin/classes:benchmark com.wisc.insightlib.PrimitiveMapCheck [seed]
+ * </pre>
+ */
+public class PrimitiveMapCheck {
+	private static final int ROUNDS = 200;
+	private static final int OPERATIONS_PER_ROUND = 5000;
+	private static final int KEY_RANGE = 2000;
+
+	public static void main(String[] args) {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+		Random random = new Random(seed);
+		System.out.println("Seed: " + seed);
+
+		checkIntLongMap(random);
+		checkIntDoubleMap(random);
+		checkLongObjectMap(random);
+		checkLongObjectMapRemovals(random);
+
+		System.out.println("OK");
+	}
+
+	/**
+	 * Returns a random key, negative keys and the 0 key included.
+	 */
+	private static int nextKey(Random random) {
+		return random.nextInt(KEY_RANGE) - KEY_RANGE / 4;
+	}
+
+	private static void checkIntLongMap(Random random) {
+		IntLongHashMap map = new IntLongHashMap();
+		HashMap<Integer, Long> expected = new HashMap<Integer, Long>();
+
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int i = 0; i < OPERATIONS_PER_ROUND; i++) {
+				int key = nextKey(random);
+
+				if (random.nextBoolean()) {
+					long value = random.nextLong();
+					map.put(key, value);
+					expected.put(key, value);
+				} else {
+					long delta = random.nextInt(100);
+					Long value = expected.get(key);
+					long sum = (value == null ? 0 : value) + delta;
+					check(map.add(key, delta) == sum, "IntLongHashMap.add", key);
+					expected.put(key, sum);
+				}
+			}
+
+			check(map.size() == expected.size(), "IntLongHashMap.size", -1);
+
+			for (int key = -KEY_RANGE; key < KEY_RANGE; key++) {
+				Long value = expected.get(key);
+				check(map.containsKey(key) == (value != null), "IntLongHashMap.containsKey", key);
+				check(map.get(key, -1) == (value == null ? -1 : value), "IntLongHashMap.get", key);
+			}
+
+			int numEntries = 0;
+
+			for (int slot = 0; slot < map.capacity(); slot++) {
+				if (map.isUsed(slot)) {
+					check(expected.get(map.keyAt(slot)) == map.valueAt(slot),
+							"IntLongHashMap.valueAt", map.keyAt(slot));
+					numEntries++;
+				}
+			}
+
+			check(numEntries == expected.size(), "IntLongHashMap iteration", -1);
+
+			if (random.nextInt(10) == 0) {
+				map.clear();
+				expected.clear();
+			}
+		}
+	}
+
+	private static void checkIntDoubleMap(Random random) {
+		IntDoubleHashMap map = new IntDoubleHashMap();
+		HashMap<Integer, Double> expected = new HashMap<Integer, Double>();
+
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int i = 0; i < OPERATIONS_PER_ROUND; i++) {
+				int key = nextKey(random);
+
+				if (random.nextBoolean()) {
+					double value = random.nextDouble();
+					map.put(key, value);
+					expected.put(key, value);
+				} else {
+					double delta = random.nextInt(100);
+					Double value = expected.get(key);
+					double sum = (value == null ? 0 : value) + delta;
+					check(map.add(key, delta) == sum, "IntDoubleHashMap.add", key);
+					expected.put(key, sum);
+				}
+			}
+
+			check(map.size() == expected.size(), "IntDoubleHashMap.size", -1);
+
+			for (int key = -KEY_RANGE; key < KEY_RANGE; key++) {
+				Double value = expected.get(key);
+				check(map.containsKey(key) == (value != null), "IntDoubleHashMap.containsKey", key);
+				check(map.get(key, -1) == (value == null ? -1 : value), "IntDoubleHashMap.get", key);
+			}
+
+			int numEntries = 0;
+
+			for (int slot = 0; slot < map.capacity(); slot++) {
+				if (map.isUsed(slot)) {
+					check(expected.get(map.keyAt(slot)) == map.valueAt(slot),
+							"IntDoubleHashMap.valueAt", map.keyAt(slot));
+					numEntries++;
+				}
+			}
+
+			check(numEntries == expected.size(), "IntDoubleHashMap iteration", -1);
+
+			if (random.nextInt(10) == 0) {
+				map.clear();
+				expected.clear();
+			}
+		}
+	}
+
+	private static void checkLongObjectMap(Random random) {
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+		HashMap<Long, String> expected = new HashMap<Long, String>();
+
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int i = 0; i < OPERATIONS_PER_ROUND; i++) {
+				long key = nextKey(random);
+
+				// Remove as often as put, so that the map shrinks as well as grows.
+				if (random.nextBoolean()) {
+					String value = Long.toString(random.nextLong());
+					map.put(key, value);
+					expected.put(key, value);
+				} else {
+					check(eq(map.remove(key), expected.remove(key)), "LongObjectHashMap.remove", key);
+				}
+			}
+
+			check(map.size() == expected.size(), "LongObjectHashMap.size", -1);
+
+			for (long key = -KEY_RANGE; key < KEY_RANGE; key++) {
+				check(map.containsKey(key) == expected.containsKey(key),
+						"LongObjectHashMap.containsKey", key);
+				check(eq(map.get(key), expected.get(key)), "LongObjectHashMap.get", key);
+			}
+
+			int numEntries = 0;
+
+			for (int slot = 0; slot < map.capacity(); slot++) {
+				if (map.isUsed(slot)) {
+					check(eq(expected.get(map.keyAt(slot)), map.valueAt(slot)),
+							"LongObjectHashMap.valueAt", map.keyAt(slot));
+					numEntries++;
+				}
+			}
+
+			check(numEntries == expected.size(), "LongObjectHashMap iteration", -1);
+
+			if (random.nextInt(10) == 0) {
+				map.clear();
+				expected.clear();
+			}
+		}
+	}
+
+	/**
+	 * Fill a map of the default capacity with keys whose home slots are the last two and the
+	 * first slot of the table, so that the probe chains collide and wrap around, and remove
+	 * them in random orders, comparing the map after each removal.
+	 */
+	private static void checkLongObjectMapRemovals(Random random) {
+		int capacity = new LongObjectHashMap<String>().capacity();
+		int[] homeSlots = {capacity - 2, capacity - 2, capacity - 2, capacity - 2, capacity - 2,
+				capacity - 1, capacity - 1, capacity - 1, 0, 0, 1};
+		long[] keys = new long[homeSlots.length];
+		int numKeys = 0;
+
+		// Pick the first unused keys with the wanted home slots.
+		for (long key = 0; numKeys < keys.length; key++) {
+			int homeSlot = IntLongHashMap.mix((int) (key ^ (key >>> 32))) & (capacity - 1);
+
+			if (homeSlot == homeSlots[numKeys]) {
+				keys[numKeys++] = key;
+			}
+		}
+
+		for (int round = 0; round < ROUNDS * 10; round++) {
+			LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+			HashMap<Long, String> expected = new HashMap<Long, String>();
+
+			shuffle(keys, random);
+
+			for (int i = 0; i < keys.length; i++) {
+				map.put(keys[i], Long.toString(keys[i]));
+				expected.put(keys[i], Long.toString(keys[i]));
+			}
+
+			check(map.capacity() == capacity, "LongObjectHashMap.capacity", -1);
+			shuffle(keys, random);
+
+			for (int i = 0; i < keys.length; i++) {
+				check(eq(map.remove(keys[i]), expected.remove(keys[i])), "LongObjectHashMap.remove",
+						keys[i]);
+				check(map.remove(keys[i]) == null, "LongObjectHashMap.remove of a removed key",
+						keys[i]);
+				check(map.size() == expected.size(), "LongObjectHashMap.size", -1);
+
+				for (int j = 0; j < keys.length; j++) {
+					check(eq(map.get(keys[j]), expected.get(keys[j])), "LongObjectHashMap.get",
+							keys[j]);
+				}
+
+				int numEntries = 0;
+
+				for (int slot = 0; slot < map.capacity(); slot++) {
+					if (map.isUsed(slot)) {
+						check(eq(expected.get(map.keyAt(slot)), map.valueAt(slot)),
+								"LongObjectHashMap.valueAt", map.keyAt(slot));
+						numEntries++;
+					}
+				}
+
+				check(numEntries == expected.size(), "LongObjectHashMap iteration", -1);
+			}
+		}
+	}
+
+	private static void shuffle(long[] keys, Random random) {
+		for (int i = keys.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			long key = keys[i];
+			keys[i] = keys[j];
+			keys[j] = key;
+		}
+	}
+
+	private static boolean eq(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static void check(boolean condition, String what, long key) {
+		if (!condition) {
+			System.out.println("Mismatch in " + what + " for the key " + key);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+/**
+ * Measures the serialization of a stats report of 10k events: 5k event values, 3k event
+ * strings and 2k event counts are captured, and the event sections are then written straight
+ * into a reused StatsWriter, as the periodic report does. Prints the mean time per report and
+ * the report size.
+ *
+ * Not part of the library build. Run on a JVM with the library classes and working
+ * android.os.SystemClock and android.util.Log stubs on the classpath, or on a device:
+ *
+ * <pre>
+ * java -cp bin/classes:stubs:benchmark com.wisc.insightlib.StatsReportBenchmark [iterations]
+ * </pre>
+ */
+public class StatsReportBenchmark {
+	private static final int NUM_VALUES = 5000;
+	private static final int NUM_STRINGS = 3000;
+	private static final int NUM_COUNTS = 2000;
+	private static final int WARMUP_ITERATIONS = 20;
+
+	private static final String[] SCREENS = {"Home", "Search", "Details", "Settings", "Profile"};
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		StatsWriter out = new StatsWriter();
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			runReport(out);
+		}
+
+		long totalNanos = 0;
+		int reportLength = 0;
+
+		for (int i = 0; i < iterations; i++) {
+			EventStatistics eventStats = captureEvents();
+			out.reset();
+
+			long start = System.nanoTime();
+			writeReport(eventStats, out);
+			totalNanos += System.nanoTime() - start;
+			reportLength = out.length();
+		}
+
+		System.out.println("Events per report: " + (NUM_VALUES + NUM_STRINGS + NUM_COUNTS));
+		System.out.println("Report size: " + reportLength + " bytes");
+		System.out.println("Mean serialization time: " + (totalNanos / iterations / 1000) + " usec");
+	}
+
+	private static void runReport(StatsWriter out) {
+		out.reset();
+		writeReport(captureEvents(), out);
+	}
+
+	private static EventStatistics captureEvents() {
+		EventStatistics eventStats = new EventStatistics();
+
+		for (int i = 0; i < NUM_VALUES; i++) {
+			eventStats.captureEventValue(1000 + i % 50, i * 0.25);
+		}
+
+		for (int i = 0; i < NUM_STRINGS; i++) {
+			eventStats.captureEventString(2000 + i % 10, SCREENS[i % SCREENS.length]);
+		}
+
+		for (int i = 0; i < NUM_COUNTS; i++) {
+			eventStats.captureEvent(3000 + i % 100);
+		}
+
+		eventStats.closeEventCountWindow();
+		return eventStats;
+	}
+
+	/**
+	 * Write the event sections of a periodic report, in the order of the report.
+	 */
+	private static void writeReport(EventStatistics eventStats, StatsWriter out) {
+		eventStats.appendEventValueStats(out);
+		out.append('$');
+		eventStats.appendEventStringStats(out);
+		out.append('$');
+		eventStats.appendEventSketchStats(out);
+		out.append('$');
+		eventStats.appendSamplingStats(out);
+		out.append('$');
+		eventStats.appendEventTopStringStats(out);
+		out.append('$');
+		eventStats.appendEventCountWindowStats(out);
+	}
+}
@@ -0,0 +1,239 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import android.os.SystemClock;
+
+/**
+ * Estimates the battery drain rate of the device during the session. The battery samples are kept
+ * in a small ring and the drain (in %/hour) is computed while the device is on battery. The drain
+ * is also split by the screen state and the active network type, to tell how much each of them
+ * costs. The estimator is updated on the broadcast thread and only reports a coalesced summary
+ * when asked, instead of one message per battery change.
+ */
+public class BatteryDrainEstimator {
+	/**
+	 * Constants.
+	 */
+	private static final long HOUR_MSEC = 3600L * Constants.SEC;
+	private static final int NUM_NETWORK_TYPES = 4;  // None, unknown, WiFi, cellular.
+	private static final int NUM_STATES = 2 * NUM_NETWORK_TYPES;
+
+	/**
+	 * The ring of battery samples, one per battery broadcast. The level is in percent. Plugged
+	 * is 0 while on battery.
+	 */
+	private final long[] timestamps = new long[Constants.BATTERY_SAMPLE_RING_SIZE];
+	private final double[] levels = new double[Constants.BATTERY_SAMPLE_RING_SIZE];
+	private final int[] pluggedStates = new int[Constants.BATTERY_SAMPLE_RING_SIZE];
+	private int head = 0;
+	private int count = 0;
+
+	/**
+	 * The start of the current state segment: the time and the battery level at the last battery
+	 * sample or state change, and the screen and network state since then. Kept apart from the
+	 * sample ring, so that the state changes don't add points to the drain fit. The segment
+	 * state is -1 until the first battery sample.
+	 */
+	private long segmentStartTime = 0;
+	private double segmentStartLevel = 0;
+	private int segmentPlugged = -1;
+	private int segmentState = -1;
+
+	/**
+	 * Time spent (msec) and battery drained (percent) on battery in each screen and network state.
+	 */
+	private final long[] stateDurations = new long[NUM_STATES];
+	private final double[] stateDrains = new double[NUM_STATES];
+
+	/**
+	 * The raw values of the last battery broadcast.
+	 */
+	private int lastLevel = -1;
+	private int lastScale = -1;
+	private int lastTemperature = -1;
+	private int lastVoltage = -1;
+	private int lastHealth = -1;
+	private String lastTechnology = null;
+	private int lastPlugged = -1;
+
+	/**
+	 * Number of samples added since the last summary.
+	 */
+	private int samplesSinceSummary = 0;
+
+	/**
+	 * Add a new battery sample.
+	 *
+	 * @param level
+	 * @param scale
+	 * @param temperature
+	 * @param voltage
+	 * @param health
+	 * @param technology
+	 * @param plugged
+	 * @param screenOn - Whether the screen is currently on.
+	 * @param networkType - Type of the active network (see Utils.getActiveNetworkType).
+	 */
+	public synchronized void addSample(int level, int scale, int temperature, int voltage,
+			int health, String technology, int plugged, boolean screenOn, int networkType) {
+		lastLevel = level;
+		lastScale = scale;
+		lastTemperature = temperature;
+		lastVoltage = voltage;
+		lastHealth = health;
+		lastTechnology = technology;
+		lastPlugged = plugged;
+
+		long now = SystemClock.elapsedRealtime();
+		double percent = scale > 0 ? (level * 100.0) / scale : level;
+
+		if (segmentState >= 0) {
+			closeSegment(now, percent);
+		}
+
+		segmentStartTime = now;
+		segmentStartLevel = percent;
+		segmentPlugged = plugged;
+		segmentState = getState(screenOn, networkType);
+
+		timestamps[head] = now;
+		levels[head] = percent;
+		pluggedStates[head] = plugged;
+
+		head = (head + 1) % Constants.BATTERY_SAMPLE_RING_SIZE;
+		count = Math.min(count + 1, Constants.BATTERY_SAMPLE_RING_SIZE);
+		samplesSinceSummary++;
+	}
+
+	/**
+	 * Should be called when the screen state or the network type changes, so that the drain
+	 * of the preceding interval is attributed to the preceding state.
+	 *
+	 * @param screenOn
+	 * @param networkType
+	 */
+	public synchronized void onStateChanged(boolean screenOn, int networkType) {
+		int state = getState(screenOn, networkType);
+
+		if (segmentState < 0 || segmentState == state) {
+			return;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		closeSegment(now, segmentStartLevel);
+
+		segmentStartTime = now;
+		segmentState = state;
+	}
+
+	/**
+	 * Attribute the time since the start of the current segment and the drain down to the input
+	 * level to the segment state, if the device stayed on battery.
+	 */
+	private void closeSegment(long now, double percent) {
+		if (segmentPlugged == 0 && lastPlugged == 0) {
+			stateDurations[segmentState] += now - segmentStartTime;
+			stateDrains[segmentState] += segmentStartLevel - percent;
+		}
+	}
+
+	private static int getState(boolean screenOn, int networkType) {
+		if (networkType < 0 || networkType >= NUM_NETWORK_TYPES) {
+			networkType = 1;
+		}
+
+		return (screenOn ? NUM_NETWORK_TYPES : 0) + networkType;
+	}
+
+	/**
+	 * Returns the current drain rate, computed using a least squares fit over the samples since
+	 * the device was last unplugged. The fit smooths out the 1% granularity of the battery level.
+	 *
+	 * @return drain rate (%/hour), or -1 if not enough samples are available.
+	 */
+	public synchronized double getDrainRate() {
+		int numSamples = 0;
+		double sumT = 0, sumL = 0, sumTT = 0, sumTL = 0;
+
+		for (int i = 1; i <= count; i++) {
+			int index = (head + Constants.BATTERY_SAMPLE_RING_SIZE - i) % Constants.BATTERY_SAMPLE_RING_SIZE;
+
+			if (pluggedStates[index] != 0) {
+				break;
+			}
+
+			double t = (timestamps[index] - timestamps[(head + Constants.BATTERY_SAMPLE_RING_SIZE - 1)
+					% Constants.BATTERY_SAMPLE_RING_SIZE]) / (double) HOUR_MSEC;
+			sumT += t;
+			sumL += levels[index];
+			sumTT += t * t;
+			sumTL += t * levels[index];
+			numSamples++;
+		}
+
+		double denominator = numSamples * sumTT - sumT * sumT;
+
+		if (numSamples < 2 || denominator <= 0) {
+			return -1;
+		}
+
+		return -(numSamples * sumTL - sumT * sumL) / denominator;
+	}
+
+	/**
+	 * Returns the coalesced battery summary: the last battery state (in the BATTERY_INFO format),
+	 * the number of samples since the last summary, the current drain rate and the drain rate in
+	 * each screen and network state as screenOn#networkType#durationSec#drainPerHour@...
+	 *
+	 * @param delim
+	 *
+	 * @return summary string, or null if there are no new samples since the last summary.
+	 */
+	public synchronized String getSummaryString(String delim) {
+		if (samplesSinceSummary == 0) {
+			return null;
+		}
+
+		StringBuilder stateString = new StringBuilder();
+
+		for (int state = 0; state < NUM_STATES; state++) {
+			if (stateDurations[state] <= 0) {
+				continue;
+			}
+
+			if (stateString.length() > 0) {
+				stateString.append("@");
+			}
+
+			stateString.append(state >= NUM_NETWORK_TYPES ? 1 : 0).append("#")
+				.append(state % NUM_NETWORK_TYPES).append("#")
+				.append(stateDurations[state] / Constants.SEC).append("#")
+				.append(round(stateDrains[state] * HOUR_MSEC / stateDurations[state]));
+		}
+
+		String summary = lastLevel + delim + lastScale + delim + lastTemperature + delim +
+			lastVoltage + delim + lastHealth + delim + lastTechnology + delim + lastPlugged + delim +
+			samplesSinceSummary + delim + round(getDrainRate()) + delim + stateString;
+
+		samplesSinceSummary = 0;
+		return summary;
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 100) / 100.0;
+	}
+}
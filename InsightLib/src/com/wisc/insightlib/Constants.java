@@ -74,6 +74,14 @@ public class Constants {
 	public static final int SEC = 1000; // 1000 MSEC
 	public static final int SOCKET_CONNECT_TIMEOUT = 15 * SEC;
 	
+	/**
+	 * Minimum time between two attempts to reconnect to the server after a failed send, doubled
+	 * after each failed attempt. The stats collection is stopped after MAX_RECONNECT_FAILURES
+	 * failed attempts in a row.
+	 */
+	public static final int RECONNECT_INTERVAL = 60 * SEC;
+	public static final int MAX_RECONNECT_FAILURES = 4;
+	
 	/**
 	 * Timer related constants for the Ping Test.
 	 */
@@ -86,6 +94,13 @@ public class Constants {
 	public static final int RESOURCE_INTERVAL = 40 * SEC;
 	public static final int INIT_SLEEP_TIME = 5 * SEC;
 	
+	/**
+	 * Battery drain estimation related constants. The battery changes are coalesced and
+	 * reported once every BATTERY_SUMMARY_INTERVAL.
+	 */
+	public static final int BATTERY_SAMPLE_RING_SIZE = 64;
+	public static int BATTERY_SUMMARY_INTERVAL = 600 * SEC;
+	
 	/**
 	 * Location Related Constants.
 	 * 
@@ -97,6 +112,23 @@ public class Constants {
 	public static final String NOT_AVAILABLE = "NaV"; 
 	public static final double MAX_INACCURACY = 300.0;
 
+	/**
+	 * InsightScheduler related constants. The periodic tasks are aligned to multiples of
+	 * SCHEDULER_ALIGNMENT so that they wake up together. SCHEDULER_THREADS run the non-blocking
+	 * samplers; the tasks that block on the network or a child process run on a separate
+	 * sender thread.
+	 */
+	public static final int SCHEDULER_THREADS = 2;
+	public static final int SCHEDULER_ALIGNMENT = 10 * SEC;
+	
+	/**
+	 * Power save mode (screen off or application in background). The pausable periodic tasks
+	 * run POWER_SAVE_SLOWDOWN times slower in this mode, or not at all if set to 0. Pausing
+	 * also stops the traffic counter sampling, the event count windows and the download
+	 * sweep, so the counter increments over a long pause can't be checked for plausibility.
+	 */
+	public static int POWER_SAVE_SLOWDOWN = 4;
+	
 	/**
 	 * Constants related to the periodic stats reporting.
 	 */
@@ -107,6 +139,106 @@ public class Constants {
 	 */
 	public static final int SESSION_END_WAIT = 10 * SEC;
 	
+	/**
+	 * Self overhead budgets. Insight throttles itself for the rest of the session if its own
+	 * CPU time (msec) or the traffic exchanged with the servers (bytes) exceeds these values
+	 * per hour of session time.
+	 */
+	public static long SELF_CPU_BUDGET_PER_HOUR = 60 * SEC;
+	public static long SELF_BANDWIDTH_BUDGET_PER_HOUR = 2 * 1024 * 1024;
+	
+	/**
+	 * Count the bytes allocated by the Insight tasks. Disabled by default as the allocation
+	 * counting slows down the whole VM.
+	 */
+	public static boolean SELF_STATS_ALLOC_COUNTING = false;
+	
+	/**
+	 * Event counter related constants. Each thread counts its events in one of the
+	 * EVENT_COUNTER_STRIPES stripes, each holding up to EVENT_COUNTER_CAPACITY event IDs.
+	 */
+	public static final int EVENT_COUNTER_STRIPES = 8;
+	public static final int EVENT_COUNTER_CAPACITY = 128;
+	
+	/**
+	 * The event counts are reported per EVENT_COUNT_WINDOW time window, with the periodic
+	 * stats reports. Up to MAX_EVENT_COUNT_WINDOWS windows are kept between the reports;
+	 * beyond that the oldest windows are merged.
+	 */
+	public static final int EVENT_COUNT_WINDOW = 60 * SEC;
+	public static final int MAX_EVENT_COUNT_WINDOWS = 60;
+	
+	/**
+	 * The captured event values and strings are buffered in a ring of EVENT_RING_SIZE slots,
+	 * which is drained into the event statistics every EVENT_RING_DRAIN_INTERVAL.
+	 */
+	public static final int EVENT_RING_SIZE = 1024;
+	public static final int EVENT_RING_DRAIN_INTERVAL = 10 * SEC;
+	
+	/**
+	 * Aggregate the event values into per event sketches instead of reporting each value.
+	 * Enabled using InsightLib.setEventValueSketches().
+	 */
+	public static boolean EVENT_VALUE_SKETCHES = false;
+	
+	/**
+	 * Maximum number of distinct event strings dictionary encoded per session.
+	 */
+	public static final int EVENT_STRING_DICTIONARY_SIZE = 512;
+	
+	/**
+	 * Caps on the event tuples buffered between the stats reports (about 20 bytes per value
+	 * and 16 bytes per string, plus the distinct strings), the policy applied once a cap is
+	 * reached, and the cap on the unsent stats reports kept to be resent (in bytes).
+	 */
+	public static int MAX_EVENT_VALUES = 8192;
+	public static int MAX_EVENT_STRINGS = 4096;
+	public static EventOverflowPolicy EVENT_OVERFLOW_POLICY = EventOverflowPolicy.DEGRADE_TO_SKETCH;
+	public static int MAX_PENDING_STATS_LENGTH = 64 * 1024;
+	
+	/**
+	 * Once an event logs more than EVENT_STRING_CARDINALITY_THRESHOLD distinct strings in a
+	 * session (0 disables), only its EVENT_STRING_TOP_K most frequent strings are reported, with
+	 * approximate counts, counted in EVENT_STRING_TOP_K_COUNTER_FACTOR times as many counters.
+	 */
+	public static int EVENT_STRING_CARDINALITY_THRESHOLD = 64;
+	public static final int EVENT_STRING_TOP_K = 10;
+	public static final int EVENT_STRING_TOP_K_COUNTER_FACTOR = 4;
+	
+	/**
+	 * Download tracking related constants. At most MAX_CONCURRENT_DOWNLOADS downloads can be
+	 * in flight at the same time, and the downloads in flight for longer than
+	 * MAX_DOWNLOAD_DURATION are abandoned. The completed downloads are swept every
+	 * DOWNLOAD_SWEEP_INTERVAL.
+	 */
+	public static final int MAX_CONCURRENT_DOWNLOADS = 128;
+	public static final int MAX_DOWNLOAD_DURATION = 600 * SEC;
+	public static final int DOWNLOAD_SWEEP_INTERVAL = 5 * SEC;
+	
+	/**
+	 * The interface counters are sampled every THROUGHPUT_SAMPLE_INTERVAL (set using
+	 * InsightLib.setThroughputSampleInterval()), and summarized per THROUGHPUT_INTERVAL. Up to
+	 * MAX_THROUGHPUT_INTERVALS interface summaries are kept between the reports.
+	 */
+	public static int THROUGHPUT_SAMPLE_INTERVAL = 5 * SEC;
+	public static final int THROUGHPUT_INTERVAL = 60 * SEC;
+	public static final int MAX_THROUGHPUT_INTERVALS = 120;
+	
+	/**
+	 * The fastest plausible rate of a traffic counter (bytes/sec), 1 Gbit/s. A counter going
+	 * up faster between two samples is considered reset or reappearing, not transferring.
+	 */
+	public static final long MAX_COUNTER_RATE = 125 * 1000 * 1000;
+	
+	/**
+	 * Timed span related constants. At most MAX_OPEN_SPANS spans can be open at the same time,
+	 * and the spans open for longer than MAX_SPAN_DURATION are abandoned. The network type
+	 * recorded at the start and end of a span is refreshed every SPAN_NETWORK_TYPE_MAX_AGE.
+	 */
+	public static final int MAX_OPEN_SPANS = 256;
+	public static final int MAX_SPAN_DURATION = 600 * SEC;
+	public static final int SPAN_NETWORK_TYPE_MAX_AGE = 1 * SEC;
+	
 	/**
 	 * Packet Sizes
 	 */
@@ -0,0 +1,106 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+/**
+ * Accumulates the increments of a kernel traffic counter into a monotonic 64-bit total, across
+ * the counter resets and wraps. Between two samples the counter can:
+ * - go up by a plausible amount: the difference is added;
+ * - go back from the upper half of the 32-bit range, by a plausible wrapped amount: the counter
+ *   wrapped at 2^32 and the wrapped difference is added;
+ * - otherwise go back: the counter was reset (e.g., the interface went down and came back, or
+ *   the file was unreadable), the new value is added as counted since the reset, and the
+ *   interval is suspect, as the bytes before the reset are lost;
+ * - jump up by an implausible amount (e.g., the UID stats reappearing): nothing is added, and
+ *   the interval is suspect.
+ * An amount is plausible if it doesn't exceed Constants.MAX_COUNTER_RATE over the time since
+ * the previous sample (at least a second). A counter that couldn't be read must not be passed
+ * to update(), as a 0 would look like a reset and the whole counter would be added back once
+ * it reads again; the next update then covers the time since the last readable sample. Not
+ * thread safe.
+ */
+public class CounterDelta {
+	private static final long COUNTER_32_RANGE = 1L << 32;
+
+	private long lastValue = 0;
+	private long lastTime = 0;
+	private boolean hasLastValue = false;
+	private long total = 0;
+	private boolean isSuspect = false;
+
+	/**
+	 * Returns the largest plausible counter increment over the elapsed time.
+	 *
+	 * @param elapsed - msec since the previous sample.
+	 */
+	public static long getMaxDelta(long elapsed) {
+		return Constants.MAX_COUNTER_RATE * Math.max(elapsed, Constants.SEC) / Constants.SEC;
+	}
+
+	/**
+	 * Add the increment since the previous sample to the total. The first sample only sets the
+	 * base value.
+	 *
+	 * @param value - The current counter value, read successfully (not negative).
+	 * @param now - The current time (elapsed realtime).
+	 *
+	 * @return the increment added.
+	 */
+	public long update(long value, long now) {
+		long delta = 0;
+		isSuspect = false;
+
+		if (hasLastValue) {
+			long maxDelta = getMaxDelta(now - lastTime);
+			delta = value - lastValue;
+
+			if (delta < 0) {
+				long wrappedDelta = value + COUNTER_32_RANGE - lastValue;
+
+				if (lastValue >= COUNTER_32_RANGE / 2 && lastValue < COUNTER_32_RANGE
+						&& wrappedDelta <= maxDelta) {
+					delta = wrappedDelta;
+				} else {
+					delta = Math.max(0, Math.min(value, maxDelta));
+					isSuspect = true;
+				}
+			} else if (delta > maxDelta) {
+				delta = 0;
+				isSuspect = true;
+			}
+		}
+
+		lastValue = value;
+		lastTime = now;
+		hasLastValue = true;
+		total += delta;
+		return delta;
+	}
+
+	/**
+	 * Returns the sum of the increments.
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns whether the last update found a reset or an implausible jump.
+	 */
+	public boolean isSuspect() {
+		return isSuspect;
+	}
+}
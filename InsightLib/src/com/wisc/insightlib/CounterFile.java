@@ -0,0 +1,104 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A kernel counter file (e.g., under /sys/class/net or /proc/uid_stat) kept open between the
+ * reads. Each read seeks back to the start and re-reads the file into the same small buffer,
+ * and parses the number in place, so a read is two syscalls and allocates nothing.
+ */
+public class CounterFile {
+	private final String path;
+	private final byte[] buffer = new byte[32];
+	private RandomAccessFile file = null;
+
+	public CounterFile(String path) {
+		this.path = path;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Open the file, if not already open.
+	 *
+	 * @return false if the file can't be opened.
+	 */
+	public synchronized boolean open() {
+		if (file == null) {
+			try {
+				file = new RandomAccessFile(path, "r");
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the number at the start of the file.
+	 *
+	 * @throws IOException if the file isn't open, went away or doesn't start with a number.
+	 */
+	public synchronized long read() throws IOException {
+		if (file == null) {
+			throw new IOException(path + " is not open");
+		}
+
+		file.seek(0);
+		int length = file.read(buffer);
+
+		// An empty file, e.g. of an interface going down.
+		if (length <= 0) {
+			throw new IOException("No number in " + path);
+		}
+
+		int i = 0;
+
+		while (i < length && (buffer[i] == ' ' || buffer[i] == '\t')) {
+			i++;
+		}
+
+		if (i == length || buffer[i] < '0' || buffer[i] > '9') {
+			throw new IOException("No number in " + path);
+		}
+
+		long value = 0;
+
+		for (; i < length && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+			value = value * 10 + (buffer[i] - '0');
+		}
+
+		return value;
+	}
+
+	public synchronized void close() {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// Nothing to do, the handle is dropped anyway.
+			}
+
+			file = null;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from the wrapped stream as received by a request. Closing the stream
+ * ends the request, unless the request outlives the stream (e.g., a socket).
+ */
+public class CountingInputStream extends FilterInputStream {
+	private final RequestTrafficCounter counter;
+	private final boolean endOnClose;
+
+	/**
+	 * Wrap the input stream in a new request, ended when the stream is closed.
+	 *
+	 * @param in
+	 */
+	public CountingInputStream(InputStream in) {
+		this(in, new RequestTrafficCounter(), true);
+	}
+
+	/**
+	 * @param in
+	 * @param counter - The request the bytes are counted for.
+	 * @param endOnClose - Whether closing the stream ends the request.
+	 */
+	public CountingInputStream(InputStream in, RequestTrafficCounter counter, boolean endOnClose) {
+		super(in);
+		this.counter = counter;
+		this.endOnClose = endOnClose;
+	}
+
+	public RequestTrafficCounter getCounter() {
+		return counter;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+
+		if (b >= 0) {
+			counter.addRxBytes(1);
+		}
+
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int numBytes = in.read(buffer, offset, length);
+		counter.addRxBytes(numBytes);
+		return numBytes;
+	}
+
+	@Override
+	public long skip(long numBytes) throws IOException {
+		long skipped = in.skip(numBytes);
+		counter.addRxBytes(skipped);
+		return skipped;
+	}
+
+	/**
+	 * Not supported, so that the bytes read again after a reset aren't counted twice.
+	 */
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readLimit) {
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			if (endOnClose) {
+				counter.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to the wrapped stream as sent by a request. Closing the stream
+ * doesn't end the request, as the response is usually read after the request body is closed.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+	private final RequestTrafficCounter counter;
+
+	/**
+	 * @param out
+	 * @param counter - The request the bytes are counted for.
+	 */
+	public CountingOutputStream(OutputStream out, RequestTrafficCounter counter) {
+		super(out);
+		this.counter = counter;
+	}
+
+	public RequestTrafficCounter getCounter() {
+		return counter;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		counter.addTxBytes(1);
+	}
+
+	/**
+	 * Write the bytes to the wrapped stream at once, instead of one by one as
+	 * FilterOutputStream does.
+	 */
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		out.write(buffer, offset, length);
+		counter.addTxBytes(length);
+	}
+}
@@ -0,0 +1,64 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+/**
+ * Delta-of-delta encoding of the timestamps of the rows of a stats section. The first row
+ * carries its timestamp, the second one the delta from the first, and every later row the
+ * difference between its delta and the previous delta. Events logged at a steady rate or in
+ * bursts encode to values near 0, so the millisecond timestamps take few characters on the wire.
+ *
+ * The server decodes the section as: t0 = v0, d1 = v1, t1 = t0 + d1, di = d(i-1) + vi and
+ * ti = t(i-1) + di.
+ */
+public class DeltaOfDeltaEncoder {
+	private long prevTimestamp = 0;
+	private long prevDelta = 0;
+	private int count = 0;
+
+	/**
+	 * Start encoding a new section.
+	 */
+	public void reset() {
+		prevTimestamp = 0;
+		prevDelta = 0;
+		count = 0;
+	}
+
+	/**
+	 * Returns the encoded value of the next timestamp of the section.
+	 *
+	 * @param timestamp
+	 *
+	 * @return encoded value
+	 */
+	public long encode(long timestamp) {
+		long value;
+
+		if (count == 0) {
+			value = timestamp;
+		} else {
+			long delta = timestamp - prevTimestamp;
+			value = count == 1 ? delta : delta - prevDelta;
+			prevDelta = delta;
+		}
+
+		prevTimestamp = timestamp;
+		count++;
+
+		return value;
+	}
+}
@@ -0,0 +1,320 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the in-flight downloads in a fixed slot table, without a global lock on start and end.
+ * The download ID is (sequence << slotBits) | slot, with the sequence taken from an atomic
+ * counter, so the IDs never collide and the slot of a download is found without a lookup.
+ *
+ * The state of each slot is FREE, CLAIMED (being written by one thread), the ID of the download
+ * while it is in flight, or -ID once it has completed. The state is changed with compare and set,
+ * and the slot fields are published by the write of the state that follows them. The completed
+ * slots are moved to the completed list and freed by sweep(), run periodically, which also
+ * abandons the downloads in flight for longer than Constants.MAX_DOWNLOAD_DURATION.
+ */
+public class DownloadTracker {
+	/**
+	 * Returned by start() when all the slots are in use.
+	 */
+	public static final long INVALID_ID = -1;
+
+	private static final long FREE = 0;
+	private static final long CLAIMED = Long.MIN_VALUE;
+
+	private final int slotBits;
+	private final int slotMask;
+	private final AtomicLong nextSequence = new AtomicLong(1);
+	private final AtomicLongArray slotStates;
+
+	/**
+	 * The slot fields, written by the thread holding the slot in the CLAIMED state.
+	 */
+	private final long[] startTxBytes;
+	private final long[] startRxBytes;
+	private final long[] startTimes;
+	private final long[] transferTxBytes;
+	private final long[] transferRxBytes;
+	private final long[] endTimes;
+	private final long[] timesToFirstByte;
+	private final boolean[] isExact;
+
+	/**
+	 * The completed downloads not yet reported, and the spare list swapped in on each report.
+	 * Guarded by this.
+	 */
+	private CompletedDownloads completed = new CompletedDownloads();
+	private CompletedDownloads spareCompleted = new CompletedDownloads();
+	private long abandonedDownloads = 0;
+
+	/**
+	 * Serializes the reports, which use the spare list and the timestampEncoder outside the lock.
+	 */
+	private final Object reportLock = new Object();
+	private final DeltaOfDeltaEncoder timestampEncoder = new DeltaOfDeltaEncoder();
+
+	/**
+	 * The downloads are timestamped with the milliseconds since this time.
+	 */
+	private final long startTime;
+
+	/**
+	 * @param maxDownloads - Maximum number of downloads in flight, rounded up to a power of 2.
+	 * @param startTime - The session start time (elapsed realtime).
+	 */
+	public DownloadTracker(int maxDownloads, long startTime) {
+		int bits = 0;
+
+		while ((1 << bits) < maxDownloads) {
+			bits++;
+		}
+
+		int numSlots = 1 << bits;
+
+		this.slotBits = bits;
+		this.slotMask = numSlots - 1;
+		this.startTime = startTime;
+
+		slotStates = new AtomicLongArray(numSlots);
+		startTxBytes = new long[numSlots];
+		startRxBytes = new long[numSlots];
+		startTimes = new long[numSlots];
+		transferTxBytes = new long[numSlots];
+		transferRxBytes = new long[numSlots];
+		endTimes = new long[numSlots];
+		timesToFirstByte = new long[numSlots];
+		isExact = new boolean[numSlots];
+	}
+
+	/**
+	 * Start tracking a download.
+	 *
+	 * @param txBytes - The current transmitted bytes counter of the app.
+	 * @param rxBytes - The current received bytes counter of the app.
+	 * @param timestamp - The current time (elapsed realtime).
+	 *
+	 * @return ID of the download, or INVALID_ID if too many downloads are in flight.
+	 */
+	public long start(long txBytes, long rxBytes, long timestamp) {
+		long sequence = nextSequence.getAndIncrement();
+		int slot = claimSlot((int) sequence & slotMask);
+
+		if (slot < 0) {
+			// Free the completed slots and retry once.
+			sweep(timestamp);
+			slot = claimSlot((int) sequence & slotMask);
+
+			if (slot < 0) {
+				return INVALID_ID;
+			}
+		}
+
+		startTxBytes[slot] = txBytes;
+		startRxBytes[slot] = rxBytes;
+		startTimes[slot] = timestamp;
+
+		long downloadId = (sequence << slotBits) | slot;
+		slotStates.set(slot, downloadId);
+
+		return downloadId;
+	}
+
+	/**
+	 * Returns a FREE slot, probing from the input slot, moved to the CLAIMED state, or -1.
+	 */
+	private int claimSlot(int firstSlot) {
+		for (int i = 0; i <= slotMask; i++) {
+			int slot = (firstSlot + i) & slotMask;
+
+			if (slotStates.get(slot) == FREE && slotStates.compareAndSet(slot, FREE, CLAIMED)) {
+				return slot;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Record the end of a download.
+	 *
+	 * @param downloadId - ID returned by start().
+	 * @param txBytes - The bytes transmitted by the download if isExact, otherwise the current
+	 * transmitted bytes counter of the app.
+	 * @param rxBytes - The bytes received by the download if isExact, otherwise the current
+	 * received bytes counter of the app.
+	 * @param timestamp - The current time (elapsed realtime).
+	 * @param exact - Whether the byte counts were measured for this download alone.
+	 * @param timeToFirstByte - The msec from the start of the download to its first received
+	 * byte, or -1 if unknown.
+	 *
+	 * @return false if the download is unknown, already ended or abandoned.
+	 */
+	public boolean end(long downloadId, long txBytes, long rxBytes, long timestamp, boolean exact,
+			long timeToFirstByte) {
+		if (downloadId <= 0) {
+			return false;
+		}
+
+		int slot = (int) downloadId & slotMask;
+
+		if (slotStates.get(slot) != downloadId) {
+			return false;
+		}
+
+		long startTx = startTxBytes[slot];
+		long startRx = startRxBytes[slot];
+
+		// The app counters are unavailable: nothing to attribute.
+		if (!exact && startTx <= 0 && startRx <= 0) {
+			return slotStates.compareAndSet(slot, downloadId, FREE);
+		}
+
+		if (!slotStates.compareAndSet(slot, downloadId, CLAIMED)) {
+			return false;
+		}
+
+		transferTxBytes[slot] = exact ? txBytes : txBytes - startTx;
+		transferRxBytes[slot] = exact ? rxBytes : rxBytes - startRx;
+		endTimes[slot] = timestamp;
+		timesToFirstByte[slot] = timeToFirstByte;
+		isExact[slot] = exact;
+
+		slotStates.set(slot, -downloadId);
+		return true;
+	}
+
+	/**
+	 * Move the completed downloads to the completed list and free their slots. The downloads
+	 * in flight for longer than Constants.MAX_DOWNLOAD_DURATION are abandoned.
+	 *
+	 * @param now - The current time (elapsed realtime).
+	 */
+	public synchronized void sweep(long now) {
+		for (int slot = 0; slot <= slotMask; slot++) {
+			long state = slotStates.get(slot);
+
+			if (state < 0 && state != CLAIMED) {
+				completed.add(transferTxBytes[slot], transferRxBytes[slot],
+						endTimes[slot] - startTime, endTimes[slot] - startTimes[slot],
+						timesToFirstByte[slot], isExact[slot]);
+				slotStates.set(slot, FREE);
+			} else if (state > 0 && now - startTimes[slot] > Constants.MAX_DOWNLOAD_DURATION
+					&& slotStates.compareAndSet(slot, state, FREE)) {
+				abandonedDownloads++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of downloads abandoned so far in the session.
+	 */
+	public synchronized long getAbandonedDownloads() {
+		return abandonedDownloads;
+	}
+
+	/**
+	 * Append the downloads completed since the previous call to the writer, in the
+	 * txBytes#rxBytes#timestamp#duration#isExact#timeToFirstByte@ format. The timestamps are
+	 * delta-of-delta encoded. isExact is 1 if the bytes were measured for the download alone,
+	 * and 0 if they are the app's traffic during the download, shared with any concurrent
+	 * download. timeToFirstByte is -1 if unknown, e.g. when the bytes are inferred.
+	 *
+	 * @param out
+	 * @param now - The current time (elapsed realtime).
+	 */
+	public void appendCompletedStats(StatsWriter out, long now) {
+		synchronized (reportLock) {
+			CompletedDownloads snapshot;
+
+			synchronized (this) {
+				sweep(now);
+
+				snapshot = completed;
+				completed = spareCompleted;
+				spareCompleted = snapshot;
+			}
+
+			// The downloads completing meanwhile are moved to the other list.
+			snapshot.appendTo(out, timestampEncoder);
+			snapshot.clear();
+		}
+	}
+
+	/**
+	 * The completed downloads in growable parallel primitive arrays. Not thread safe.
+	 */
+	private static class CompletedDownloads {
+		private static final int INITIAL_CAPACITY = 16;
+
+		private long[] txBytes = new long[INITIAL_CAPACITY];
+		private long[] rxBytes = new long[INITIAL_CAPACITY];
+		private long[] timestamps = new long[INITIAL_CAPACITY];
+		private long[] durations = new long[INITIAL_CAPACITY];
+		private long[] timesToFirstByte = new long[INITIAL_CAPACITY];
+		private boolean[] isExact = new boolean[INITIAL_CAPACITY];
+		private int size = 0;
+
+		void add(long tx, long rx, long timestamp, long duration, long timeToFirstByte,
+				boolean exact) {
+			if (size == txBytes.length) {
+				int capacity = size * 2;
+				txBytes = copyOf(txBytes, capacity);
+				rxBytes = copyOf(rxBytes, capacity);
+				timestamps = copyOf(timestamps, capacity);
+				durations = copyOf(durations, capacity);
+				timesToFirstByte = copyOf(timesToFirstByte, capacity);
+
+				boolean[] newIsExact = new boolean[capacity];
+				System.arraycopy(isExact, 0, newIsExact, 0, size);
+				isExact = newIsExact;
+			}
+
+			txBytes[size] = tx;
+			rxBytes[size] = rx;
+			timestamps[size] = timestamp;
+			durations[size] = duration;
+			timesToFirstByte[size] = timeToFirstByte;
+			isExact[size] = exact;
+			size++;
+		}
+
+		private long[] copyOf(long[] array, int capacity) {
+			long[] newArray = new long[capacity];
+			System.arraycopy(array, 0, newArray, 0, size);
+			return newArray;
+		}
+
+		void appendTo(StatsWriter out, DeltaOfDeltaEncoder timestampEncoder) {
+			timestampEncoder.reset();
+
+			for (int i = 0; i < size; i++) {
+				out.append(txBytes[i]).append('#')
+					.append(rxBytes[i]).append('#')
+					.append(timestampEncoder.encode(timestamps[i])).append('#')
+					.append(durations[i]).append('#')
+					.append(isExact[i] ? 1 : 0).append('#')
+					.append(timesToFirstByte[i]).append('@');
+			}
+		}
+
+		void clear() {
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+/**
+ * A ring of the event counts of the closed time windows, waiting to be reported. Each window
+ * holds the counts of the events fired between its start and end time. Once the ring is
+ * full, the two oldest windows are merged, so the counts are kept at a coarser resolution
+ * instead of being dropped. Not thread safe.
+ */
+public class EventCountWindows {
+	private final long[] windowStarts;
+	private final long[] windowEnds;
+	private final IntLongHashMap[] windowCounts;
+	private int start = 0;
+	private int size = 0;
+
+	/**
+	 * @param maxWindows - Maximum number of windows kept, at least 2.
+	 */
+	public EventCountWindows(int maxWindows) {
+		windowStarts = new long[Math.max(2, maxWindows)];
+		windowEnds = new long[windowStarts.length];
+		windowCounts = new IntLongHashMap[windowEnds.length];
+	}
+
+	/**
+	 * Add a closed window.
+	 *
+	 * @param windowStart - Start time of the window.
+	 * @param windowEnd - End time of the window.
+	 * @param counts - Map from the event ID to its count in the window.
+	 */
+	public void add(long windowStart, long windowEnd, IntLongHashMap counts) {
+		if (size == windowEnds.length) {
+			// Merge the oldest window into the next one.
+			IntLongHashMap oldest = windowCounts[start];
+			int nextIndex = (start + 1) % windowEnds.length;
+			IntLongHashMap next = windowCounts[nextIndex];
+
+			for (int slot = 0; slot < oldest.capacity(); slot++) {
+				if (oldest.isUsed(slot)) {
+					next.add(oldest.keyAt(slot), oldest.valueAt(slot));
+				}
+			}
+
+			windowStarts[nextIndex] = windowStarts[start];
+			windowCounts[start] = null;
+			start = (start + 1) % windowEnds.length;
+			size--;
+		}
+
+		int index = (start + size) % windowEnds.length;
+		windowStarts[index] = windowStart;
+		windowEnds[index] = windowEnd;
+		windowCounts[index] = counts;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove the counts of the events sampled out by the sampler from the windows.
+	 *
+	 * @param sampler
+	 */
+	public void removeSampledOut(EventSampler sampler) {
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % windowEnds.length;
+			windowCounts[index] = sampler.getSampledCounts(windowCounts[index]);
+		}
+	}
+
+	/**
+	 * Append the windows to the writer, oldest first, in the format:
+	 * windowStart#windowEnd#eventID:count,eventID:count,...@
+	 * The windows are removed.
+	 *
+	 * @param out
+	 */
+	public void appendTo(StatsWriter out) {
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % windowEnds.length;
+			IntLongHashMap counts = windowCounts[index];
+			boolean isFirst = true;
+
+			out.append(windowStarts[index]).append('#')
+				.append(windowEnds[index]).append('#');
+
+			for (int slot = 0; slot < counts.capacity(); slot++) {
+				if (counts.isUsed(slot)) {
+					if (!isFirst) {
+						out.append(',');
+					}
+
+					out.append(counts.keyAt(slot)).append(':').append(counts.valueAt(slot));
+					isFirst = false;
+				}
+			}
+
+			out.append('@');
+			windowCounts[index] = null;
+		}
+
+		start = 0;
+		size = 0;
+	}
+}
@@ -0,0 +1,38 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+/**
+ * What to do with a captured event value or string when the event buffer reached its cap
+ * (Constants.MAX_EVENT_VALUES or Constants.MAX_EVENT_STRINGS) before the next stats report.
+ */
+public enum EventOverflowPolicy {
+	/**
+	 * Drop the oldest buffered tuple to make room for the new one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Drop the new tuple.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Add the new value to the sketch of its event instead of buffering it. Strings can't be
+	 * summarized in a sketch and are dropped as with DROP_NEWEST.
+	 */
+	DEGRADE_TO_SKETCH
+}
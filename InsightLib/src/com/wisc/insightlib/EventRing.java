@@ -0,0 +1,175 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded multi-producer, single-consumer ring of preallocated event slots. The application
+ * threads publish the captured events with a CAS on the tail and a write of the slot sequence,
+ * without locking or allocating. A single consumer at a time drains the published events into
+ * the aggregates. Each slot carries a sequence number (as in Vyukov's bounded queue) that tells
+ * whether the slot is free for the producer of a given position or published for the consumer.
+ */
+public class EventRing {
+	/**
+	 * Slot types.
+	 */
+	private static final int TYPE_VALUE = 0;
+	private static final int TYPE_STRING = 1;
+
+	/**
+	 * Receives the drained events.
+	 */
+	public interface Consumer {
+		void onEventValue(int eventID, long timestamp, double value);
+		void onEventString(int eventID, long timestamp, String value);
+	}
+
+	private final int mask;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0;
+
+	/**
+	 * The slot fields. Written by the producer that claimed the slot before it publishes the
+	 * slot sequence, and read by the consumer after it observes the sequence.
+	 */
+	private final int[] types;
+	private final int[] ids;
+	private final long[] timestamps;
+	private final double[] values;
+	private final String[] strings;
+
+	/**
+	 * @param capacity - Number of slots, rounded up to a power of 2.
+	 */
+	public EventRing(int capacity) {
+		int size = 1;
+
+		while (size < capacity) {
+			size <<= 1;
+		}
+
+		mask = size - 1;
+		sequences = new AtomicLongArray(size);
+		types = new int[size];
+		ids = new int[size];
+		timestamps = new long[size];
+		values = new double[size];
+		strings = new String[size];
+
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Publish an event-value tuple.
+	 *
+	 * @return false if the ring is full.
+	 */
+	public boolean offerValue(int eventID, long timestamp, double value) {
+		long position = claim();
+
+		if (position < 0) {
+			return false;
+		}
+
+		int slot = (int) position & mask;
+		types[slot] = TYPE_VALUE;
+		ids[slot] = eventID;
+		timestamps[slot] = timestamp;
+		values[slot] = value;
+		sequences.set(slot, position + 1);
+
+		return true;
+	}
+
+	/**
+	 * Publish an event-string tuple.
+	 *
+	 * @return false if the ring is full.
+	 */
+	public boolean offerString(int eventID, long timestamp, String value) {
+		long position = claim();
+
+		if (position < 0) {
+			return false;
+		}
+
+		int slot = (int) position & mask;
+		types[slot] = TYPE_STRING;
+		ids[slot] = eventID;
+		timestamps[slot] = timestamp;
+		strings[slot] = value;
+		sequences.set(slot, position + 1);
+
+		return true;
+	}
+
+	/**
+	 * Claim the next free position for a producer.
+	 *
+	 * @return the position, or -1 if the ring is full.
+	 */
+	private long claim() {
+		while (true) {
+			long position = tail.get();
+			long difference = sequences.get((int) position & mask) - position;
+
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					return position;
+				}
+			} else if (difference < 0) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Pass all the published events to the consumer, in the order of publication. Must not be
+	 * called by more than one thread at a time.
+	 *
+	 * @param consumer
+	 *
+	 * @return number of drained events.
+	 */
+	public int drainTo(Consumer consumer) {
+		int count = 0;
+
+		while (true) {
+			int slot = (int) head & mask;
+
+			if (sequences.get(slot) != head + 1) {
+				return count;
+			}
+
+			if (types[slot] == TYPE_VALUE) {
+				consumer.onEventValue(ids[slot], timestamps[slot], values[slot]);
+			} else {
+				consumer.onEventString(ids[slot], timestamps[slot], strings[slot]);
+				strings[slot] = null;
+			}
+
+			sequences.set(slot, head + mask + 1);
+			head++;
+			count++;
+		}
+	}
+}
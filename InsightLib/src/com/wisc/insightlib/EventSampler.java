@@ -0,0 +1,110 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+/**
+ * Per event sampling, configured by the server. Each event with a sampling rate is either
+ * captured or ignored for the whole session, depending on a hash of the deviceID, the sessionID
+ * and the eventID, so the same session always makes the same decision and a sampled-in event is
+ * reported completely. The captured events carry the weight 1/rate, so that the server can
+ * re-scale their counts. Immutable once built.
+ */
+public class EventSampler {
+	/**
+	 * Weight of a sampled-out event.
+	 */
+	public static final double NOT_SAMPLED = 0;
+
+	/**
+	 * The sampling weight of the events with a sampling rate.
+	 */
+	private final IntDoubleHashMap weights;
+
+	/**
+	 * @param rates - Map from the eventID to its sampling rate (between 0 and 1).
+	 * @param deviceID
+	 * @param sessionID
+	 */
+	public EventSampler(IntDoubleHashMap rates, String deviceID, long sessionID) {
+		weights = new IntDoubleHashMap(rates.size());
+		long seed = (deviceID == null ? 0 : deviceID.hashCode()) * 0x9E3779B97F4A7C15L + sessionID;
+
+		for (int slot = 0; slot < rates.capacity(); slot++) {
+			if (rates.isUsed(slot)) {
+				int eventID = rates.keyAt(slot);
+				double rate = Math.max(0, Math.min(1, rates.valueAt(slot)));
+
+				weights.put(eventID, rate > 0 && getUniform(seed, eventID) < rate ? 1 / rate : NOT_SAMPLED);
+			}
+		}
+	}
+
+	/**
+	 * Returns a uniformly distributed number in [0, 1) for the event, using the SplitMix64
+	 * finalizer.
+	 */
+	private static double getUniform(long seed, int eventID) {
+		long hash = seed + eventID * 0xBF58476D1CE4E5B9L;
+
+		hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+		hash = hash ^ (hash >>> 31);
+
+		return (hash >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Returns the sampling weight of the event: 1 if it has no sampling rate, NOT_SAMPLED if it
+	 * is to be ignored in this session and 1/rate otherwise.
+	 *
+	 * @param eventID
+	 */
+	public double getWeight(int eventID) {
+		return weights.get(eventID, 1);
+	}
+
+	/**
+	 * Returns the counts of the events that are not sampled out, in a new map.
+	 *
+	 * @param counts - Map from the event ID to its count.
+	 */
+	public IntLongHashMap getSampledCounts(IntLongHashMap counts) {
+		IntLongHashMap sampledCounts = new IntLongHashMap(counts.size());
+
+		for (int slot = 0; slot < counts.capacity(); slot++) {
+			if (counts.isUsed(slot) && getWeight(counts.keyAt(slot)) != NOT_SAMPLED) {
+				sampledCounts.put(counts.keyAt(slot), counts.valueAt(slot));
+			}
+		}
+
+		return sampledCounts;
+	}
+
+	/**
+	 * Append the weights of the events with a sampling rate to the writer in the
+	 * eventID#weight@ format. The sampled-out events have the weight 0.
+	 *
+	 * @param out
+	 */
+	public void appendTo(StatsWriter out) {
+		for (int slot = 0; slot < weights.capacity(); slot++) {
+			if (weights.isUsed(slot)) {
+				out.append(weights.keyAt(slot)).append('#')
+					.append(weights.valueAt(slot)).append('@');
+			}
+		}
+	}
+}
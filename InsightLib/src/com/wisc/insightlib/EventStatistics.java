@@ -15,11 +15,11 @@
 
 package com.wisc.insightlib;
 
-import java.util.HashMap;
-import java.util.Vector;
+import java.util.HashSet;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -33,60 +33,223 @@ public class EventStatistics {
 	private static final String TAG = "EventStatistics";
 	
 	/**
-	 * Save the start time of initialization.
+	 * Save the start time (elapsed realtime) of initialization. The events are timestamped with
+	 * the milliseconds since this time.
 	 */
 	private long startTime;
 	
 	/**
-	 * Maintains a counter for various events. 
+	 * Maintains a counter for various events. The counters are lock-free and do not use the lock.
 	 */
-	private HashMap<Integer, Integer> eventCountMap;
+	private final StripedEventCounter eventCounter = new StripedEventCounter(
+			Constants.EVENT_COUNTER_STRIPES, Constants.EVENT_COUNTER_CAPACITY);
 
 	/**
-	 * Maintains a list of various events ang their values.
+	 * The event counts of the closed time windows not yet reported, the end time of the last
+	 * closed window and the counts of the closed windows for the whole session. Guarded by the
+	 * lock.
 	 */
-	private Vector<Triplet<Integer, Long, Double>> eventValueList;
+	private final EventCountWindows eventCountWindows = new EventCountWindows(
+			Constants.MAX_EVENT_COUNT_WINDOWS);
+	private long lastWindowEnd = 0;
+	private final IntLongHashMap sessionEventCounts = new IntLongHashMap();
+
+	/**
+	 * Maintains a list of various events ang their values. On each report, the list is swapped
+	 * with the empty spare list under the lock, and then serialized without the lock held, so
+	 * that the capture methods don't wait for the formatting.
+	 */
+	private EventValueBuffer eventValueList = new EventValueBuffer();
+	private EventValueBuffer spareEventValueList = new EventValueBuffer();
+	
+	/**
+	 * Maintains a list of various events ang their values. Swapped like the eventValueList;
+	 * both the lists share the session dictionary.
+	 */
+	private final EventStringBuffer.Dictionary eventStringDictionary =
+		new EventStringBuffer.Dictionary(Constants.EVENT_STRING_DICTIONARY_SIZE);
+	private EventStringBuffer eventStringList = new EventStringBuffer(eventStringDictionary);
+	private EventStringBuffer spareEventStringList = new EventStringBuffer(eventStringDictionary);
+	
+	/**
+	 * Maintains a sketch of the values of each event, used instead of the eventValueList
+	 * if Constants.EVENT_VALUE_SKETCHES is enabled.
+	 */
+	private final LongObjectHashMap<ValueSketch> eventSketches = new LongObjectHashMap<ValueSketch>();
+	
+	/**
+	 * The distinct strings of each event, until the event crosses
+	 * Constants.EVENT_STRING_CARDINALITY_THRESHOLD. From then on, the strings of the event are
+	 * only counted in its entry of eventTopStrings. Guarded by the lock.
+	 */
+	private final LongObjectHashMap<HashSet<String>> eventStringSets =
+		new LongObjectHashMap<HashSet<String>>();
+	private final LongObjectHashMap<TopKTracker> eventTopStrings = new LongObjectHashMap<TopKTracker>();
+	
+	/**
+	 * The per event sampling configured by the server, or null if all the events are captured.
+	 */
+	private volatile EventSampler sampler = null;
+	
+	/**
+	 * The captured event values and strings are first published to this ring, without locking,
+	 * and later drained into the eventValueList and eventStringList structures.
+	 */
+	private final EventRing eventRing = new EventRing(Constants.EVENT_RING_SIZE);
 	
 	/**
-	 * Maintains a list of various events ang their values.
+	 * Number of event values and strings dropped or aggregated into the sketches due to the
+	 * buffer caps, and of the rows dropped from the unsent stats reports. Guarded by the lock.
 	 */
-	private Vector<Triplet<Integer, Long, String>> eventStringList;
+	private long droppedValues = 0;
+	private long droppedStrings = 0;
+	private long aggregatedValues = 0;
+	private long droppedReportRows = 0;
 	
 	/**
-	 * Used for serialized access to the eventCountMap and eventList structures.
+	 * Used for serialized access to the eventValueList and eventStringList structures, and for
+	 * draining the eventRing.
 	 */
 	private final Lock lock = new ReentrantLock();
 	
 	/**
-	 * Initialize the data stuctures for the event statistics.
+	 * Serializes the reports, which use the spare lists outside the lock.
 	 */
-	public EventStatistics() {
-		startTime = System.currentTimeMillis();
+	private final Object reportLock = new Object();
+	
+	/**
+	 * Folds the events drained from the ring into the buffers. Called with the lock held.
+	 */
+	private final EventRing.Consumer ringConsumer = new EventRing.Consumer() {
+		public void onEventValue(int eventID, long timestamp, double value) {
+			if (Constants.EVENT_VALUE_SKETCHES) {
+				addToSketch(eventID, value);
+				return;
+			}
+			
+			if (eventValueList.size() >= Constants.MAX_EVENT_VALUES) {
+				if (Constants.EVENT_OVERFLOW_POLICY == EventOverflowPolicy.DEGRADE_TO_SKETCH) {
+					addToSketch(eventID, value);
+					aggregatedValues++;
+					return;
+				}
+				
+				droppedValues++;
+				
+				if (Constants.EVENT_OVERFLOW_POLICY != EventOverflowPolicy.DROP_OLDEST) {
+					return;
+				}
+				
+				eventValueList.removeOldest();
+			}
+			
+			eventValueList.add(eventID, timestamp - startTime, value);
+		}
 		
-		eventCountMap = new HashMap<Integer, Integer>();
-		eventValueList = new Vector<Triplet<Integer, Long, Double>>();
-		eventStringList = new Vector<Triplet<Integer, Long, String>>();
+		public void onEventString(int eventID, long timestamp, String value) {
+			if (isHighCardinality(eventID, value)) {
+				return;
+			}
+			
+			if (eventStringList.size() >= Constants.MAX_EVENT_STRINGS) {
+				droppedStrings++;
+				
+				if (Constants.EVENT_OVERFLOW_POLICY != EventOverflowPolicy.DROP_OLDEST) {
+					return;
+				}
+				
+				eventStringList.removeOldest();
+			}
+			
+			eventStringList.add(eventID, timestamp - startTime, value);
+		}
+	};
+	
+	/**
+	 * Counts the string in the top strings of the event if the event has crossed the
+	 * cardinality threshold, possibly with this string. Called with the lock held.
+	 * 
+	 * @param eventID
+	 * @param value
+	 * 
+	 * @return true if the string was counted, false if it is to be buffered.
+	 */
+	private boolean isHighCardinality(int eventID, String value) {
+		TopKTracker topStrings = eventTopStrings.get(eventID);
+		
+		if (topStrings == null) {
+			if (Constants.EVENT_STRING_CARDINALITY_THRESHOLD <= 0) {
+				return false;
+			}
+			
+			HashSet<String> strings = eventStringSets.get(eventID);
+			
+			if (strings == null) {
+				strings = new HashSet<String>();
+				eventStringSets.put(eventID, strings);
+			}
+			
+			if (!strings.add(value) || strings.size() <= Constants.EVENT_STRING_CARDINALITY_THRESHOLD) {
+				return false;
+			}
+			
+			// Switch the event to the top strings for the rest of the session.
+			eventStringSets.remove(eventID);
+			topStrings = new TopKTracker(Constants.EVENT_STRING_TOP_K, 
+					Constants.EVENT_STRING_TOP_K * Constants.EVENT_STRING_TOP_K_COUNTER_FACTOR);
+			eventTopStrings.put(eventID, topStrings);
+		}
+		
+		topStrings.add(value);
+		return true;
 	}
 	
 	/**
-	 * Reset the event counter.
+	 * Add the value to the sketch of the event. Called with the lock held.
+	 * 
+	 * @param eventID
+	 * @param value
 	 */
-	private void resetEventCount() {
-		eventCountMap = new HashMap<Integer, Integer>();
+	private void addToSketch(int eventID, double value) {
+		ValueSketch sketch = eventSketches.get(eventID);
+		
+		if (sketch == null) {
+			sketch = new ValueSketch();
+			eventSketches.put(eventID, sketch);
+		}
+		
+		sketch.add(value);
 	}
 	
 	/**
-	 * Reset the event-value tuple data.
+	 * Initialize the data stuctures for the event statistics.
 	 */
-	private void resetEventValues() {
-		eventValueList = new Vector<Triplet<Integer, Long, Double>>();		
+	public EventStatistics() {
+		startTime = SystemClock.elapsedRealtime();
 	}
 	
 	/**
-	 * Reset the event-string tuple data.
+	 * Swap the event-value tuple list with the empty spare list. Called with the lock held.
+	 * 
+	 * @return the list of the tuples captured so far.
 	 */
-	private void resetEventString() {
-		eventStringList = new Vector<Triplet<Integer, Long, String>>();		
+	private EventValueBuffer swapEventValues() {
+		EventValueBuffer snapshot = eventValueList;
+		eventValueList = spareEventValueList;
+		spareEventValueList = snapshot;
+		return snapshot;
+	}
+	
+	/**
+	 * Swap the event-string tuple list with the empty spare list. Called with the lock held.
+	 * 
+	 * @return the list of the tuples captured so far.
+	 */
+	private EventStringBuffer swapEventStrings() {
+		EventStringBuffer snapshot = eventStringList;
+		eventStringList = spareEventStringList;
+		spareEventStringList = snapshot;
+		return snapshot;
 	}
 	
 	/**
@@ -95,25 +258,89 @@ public class EventStatistics {
 	 * 
 	 * @param eventID
 	 */
-	public void captureEvent(Integer eventID) {
+	public void captureEvent(int eventID) {
+		if (!isSampled(eventID)) {
+			return;
+		}
+		
 		try {
-			lock.lock();
-			
-			Integer count = eventCountMap.get(eventID);
+			eventCounter.add(eventID, 1);
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while capturing event: ", e);
+		}
+	}
+	
+	/**
+	 * Logs count occurrences of the event denoted by the eventID. It adds count to the
+	 * counter for the input event.
+	 * 
+	 * @param eventID
+	 * @param count
+	 */
+	public void captureEvent(int eventID, long count) {
+		if (!isSampled(eventID)) {
+			return;
+		}
+		
+		try {
+			eventCounter.add(eventID, count);
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while capturing event: ", e);
+		}
+	}
+	
+	/**
+	 * Logs one occurrence of each of the first n events of the input array.
+	 * 
+	 * @param eventIDs
+	 * @param n
+	 */
+	public void captureEvents(int[] eventIDs, int n) {
+		try {
+			if (sampler == null) {
+				eventCounter.addAll(eventIDs, n);
+				return;
+			}
 			
-			if (count == null) {
-				eventCountMap.put(eventID, 1);
-			} else {
-				eventCountMap.put(eventID, count + 1);
+			for (int i = 0; i < n; i++) {
+				if (isSampled(eventIDs[i])) {
+					eventCounter.add(eventIDs[i], 1);
+				}
 			}
 		} catch (Exception e) {
-			Log.e(TAG, "An exception occured while capturing event: ", e);
+			Log.e(TAG, "An exception occured while capturing events: ", e);
 		}
+	}
+	
+	/**
+	 * Logs the first n event-value tuples of the input arrays. The tuples share one timestamp
+	 * and are added to the buffers under a single lock acquisition, instead of being published
+	 * to the ring one by one. The ring is drained first, so the tuples stay in order.
+	 * 
+	 * @param eventIDs
+	 * @param values
+	 * @param n
+	 */
+	public void captureEventValues(int[] eventIDs, double[] values, int n) {
+		long timestamp = SystemClock.elapsedRealtime();
 		
+		try {
+			lock.lock();
+			eventRing.drainTo(ringConsumer);
+			
+			for (int i = 0; i < n; i++) {
+				if (isSampled(eventIDs[i])) {
+					ringConsumer.onEventValue(eventIDs[i], timestamp, values[i]);
+				}
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while capturing event-values: ", e);
+		}
+
 		try {
 			lock.unlock();
 		} catch (Exception e) {
-			Log.e(TAG, "An exception occured while unlocking in captureEvent: ", e);
+			Log.e(TAG, "An exception occured while unlocking in captureEventValues: ", e);
 		}
 	}
 
@@ -128,10 +355,22 @@ public class EventStatistics {
 	 * @param eventID
 	 * @param value
 	 */
-	public void captureEventValue(Integer eventID, Double value) {
+	public void captureEventValue(int eventID, double value) {
+		if (!isSampled(eventID)) {
+			return;
+		}
+		
+		long timestamp = SystemClock.elapsedRealtime();
+		
+		if (eventRing.offerValue(eventID, timestamp, value)) {
+			return;
+		}
+		
+		// The ring is full. Drain it and add the event directly.
 		try {
 			lock.lock();
-			eventValueList.add(new Triplet<Integer, Long, Double>(eventID, (System.currentTimeMillis() - startTime) / 1000,  value));
+			eventRing.drainTo(ringConsumer);
+			ringConsumer.onEventValue(eventID, timestamp, value);
 		} catch (Exception e) {
 			Log.e(TAG, "An exception occured while capturing event-value: ", e);
 		}
@@ -150,10 +389,22 @@ public class EventStatistics {
 	 * @param eventID
 	 * @param value
 	 */
-	public void captureEventString(Integer eventID, String value) {
+	public void captureEventString(int eventID, String value) {
+		if (!isSampled(eventID)) {
+			return;
+		}
+		
+		long timestamp = SystemClock.elapsedRealtime();
+		
+		if (eventRing.offerString(eventID, timestamp, value)) {
+			return;
+		}
+		
+		// The ring is full. Drain it and add the event directly.
 		try {
 			lock.lock();
-			eventStringList.add((new Triplet<Integer, Long, String>(eventID, (System.currentTimeMillis() - startTime) / 1000,  value)));
+			eventRing.drainTo(ringConsumer);
+			ringConsumer.onEventString(eventID, timestamp, value);
 		} catch (Exception e) {
 			Log.e(TAG, "An exception occured while capturing event-value string: ", e);
 		}
@@ -166,103 +417,389 @@ public class EventStatistics {
 	}
 	
 	/**
-	 * Returns a formatted string for the event count information collected by Insight.
+	 * Set the per event sampling configured by the server. The events captured before, while
+	 * the sampling wasn't known yet, were not sampled: the counts of the sampled-out events
+	 * are discarded, so that the weights sent with the counts apply to all the counts of the
+	 * session. The counts of the sampled-in events are complete either way, as the sampling
+	 * decision holds for the whole session.
 	 * 
-	 * @return formatted event count string.
+	 * @param sampler
 	 */
-	public String getEventCountStatsString() {
-		StringBuilder statsString = new StringBuilder();
+	public void setSampler(EventSampler sampler) {
+		this.sampler = sampler;
 		
 		try {
 			lock.lock();
 			
-			for (Integer event : eventCountMap.keySet()) {
-				statsString.append(event + "#" + 
-						eventCountMap.get(event) + "@");
+			// Move the counts captured so far to a window, to be filtered with the others.
+			closeEventCountWindow();
+			eventCountWindows.removeSampledOut(sampler);
+			
+			IntLongHashMap sampledCounts = sampler.getSampledCounts(sessionEventCounts);
+			sessionEventCounts.clear();
+			
+			for (int slot = 0; slot < sampledCounts.capacity(); slot++) {
+				if (sampledCounts.isUsed(slot)) {
+					sessionEventCounts.put(sampledCounts.keyAt(slot), sampledCounts.valueAt(slot));
+				}
 			}
-
-			// Clean up here. Reset the event count stats after processing the event.
-			resetEventCount();
 		} catch (Exception e) {
-			Log.e(TAG, "An exception occured while generating stats string: ", e);
-			statsString = new StringBuilder();
+			Log.e(TAG, "An exception occured while setting the sampler: ", e);
+		}
+		
+		try {
+			lock.unlock();
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while unlocking in setSampler: ", e);
+		}
+	}
+	
+	/**
+	 * Returns whether the event is captured in this session.
+	 * 
+	 * @param eventID
+	 */
+	private boolean isSampled(int eventID) {
+		EventSampler currSampler = sampler;
+		return currSampler == null || currSampler.getWeight(eventID) != EventSampler.NOT_SAMPLED;
+	}
+	
+	/**
+	 * Append the sampling weight of the events with a sampling rate to the writer, in the
+	 * eventID#weight@ format. The server multiplies the counts of the event by its weight.
+	 * 
+	 * @param out
+	 */
+	public void appendSamplingStats(StatsWriter out) {
+		EventSampler currSampler = sampler;
+		
+		if (currSampler != null) {
+			currSampler.appendTo(out);
+		}
+	}
+	
+	/**
+	 * Fold the events published to the ring into the event value and string lists. Run
+	 * periodically, so that the ring doesn't fill up between the stats reports.
+	 */
+	public void drainEventRing() {
+		try {
+			lock.lock();
+			eventRing.drainTo(ringConsumer);
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while draining the event ring: ", e);
 		}
 		
 		try {
 			lock.unlock();
 		} catch (Exception e) {
-			Log.e(TAG, "An exception occured while unlocking in getEventStatsString: ", e);
-			//statsString = new StringBuilder();
+			Log.e(TAG, "An exception occured while unlocking in drainEventRing: ", e);
+		}
+	}
+	
+	/**
+	 * Close the current event count window: the events counted since the previous window are
+	 * moved to a new window, to be sent with the next stats report, and added to the session
+	 * counts. Run periodically every Constants.EVENT_COUNT_WINDOW. Windows without any events
+	 * are skipped.
+	 */
+	public void closeEventCountWindow() {
+		try {
+			lock.lock();
+			
+			long windowEnd = SystemClock.elapsedRealtime() - startTime;
+			IntLongHashMap windowCounts = eventCounter.drain();
+			
+			if (windowCounts.size() > 0) {
+				for (int slot = 0; slot < windowCounts.capacity(); slot++) {
+					if (windowCounts.isUsed(slot)) {
+						sessionEventCounts.add(windowCounts.keyAt(slot), windowCounts.valueAt(slot));
+					}
+				}
+				
+				eventCountWindows.add(lastWindowEnd, windowEnd, windowCounts);
+			}
+			
+			lastWindowEnd = windowEnd;
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while closing the event count window: ", e);
 		}
 		
-		return statsString.toString(); 
+		try {
+			lock.unlock();
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while unlocking in closeEventCountWindow: ", e);
+		}
+	}
+	
+	/**
+	 * Record the rows of a stats report that couldn't be sent to the server and were dropped.
+	 * The strings of the dictionary entries the report carried are carried again by the next
+	 * report, as the server never received them.
+	 * 
+	 * @param numRows
+	 */
+	public void reportRowsDropped(long numRows) {
+		synchronized (reportLock) {
+			try {
+				lock.lock();
+				droppedReportRows += numRows;
+				eventStringList.resetCarriedEntries();
+			} catch (Exception e) {
+				Log.e(TAG, "An exception occured while counting the dropped rows: ", e);
+			}
+			
+			try {
+				lock.unlock();
+			} catch (Exception e) {
+				Log.e(TAG, "An exception occured while unlocking in reportRowsDropped: ", e);
+			}
+		}
 	}
 	
 	/**
-	 * Returns a formatted string for the event value tuples collected by Insight.
+	 * Append the number of event values dropped, event strings dropped, event values
+	 * aggregated into sketches due to the buffer caps, and stats report rows dropped as they
+	 * couldn't be sent, to the writer.
 	 * 
-	 * @return formatted event value tuple string.
+	 * @param out
 	 */
-	public String getEventValueStatsString() {
-		StringBuilder statsString = new StringBuilder();
+	public void appendOverflowStats(StatsWriter out) {
+		int start = out.length();
+		
+		try {
+			lock.lock();
+			out.append(droppedValues).append('#')
+				.append(droppedStrings).append('#')
+				.append(aggregatedValues).append('#')
+				.append(droppedReportRows);
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while generating overflow stats string: ", e);
+			out.setLength(start);
+		}
+		
+		try {
+			lock.unlock();
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while unlocking in appendOverflowStats: ", e);
+		}
+	}
+	
+	/**
+	 * Append the event count information collected by Insight to the writer.
+	 * 
+	 * @param out
+	 */
+	public void appendEventCountStats(StatsWriter out) {
+		int start = out.length();
+		
+		// Close the last window, so that the session counts include all the events.
+		closeEventCountWindow();
 		
 		try {
 			lock.lock();
 			
-			for (int i = 0; i < eventValueList.size(); i++) {
-				statsString.append(eventValueList.elementAt(i).first + "#" + 
-						eventValueList.elementAt(i).value1 + "#" +
-						eventValueList.elementAt(i).value2 + "@");
+			for (int slot = 0; slot < sessionEventCounts.capacity(); slot++) {
+				if (sessionEventCounts.isUsed(slot)) {
+					out.append(sessionEventCounts.keyAt(slot)).append('#')
+						.append(sessionEventCounts.valueAt(slot)).append('@');
+				}
 			}
 			
-			// Clean up here. Reset the event value stats after processing the event.
-			resetEventValues();
+			// Clean up here.
+			sessionEventCounts.clear();
 		} catch (Exception e) {
 			Log.e(TAG, "An exception occured while generating stats string: ", e);
-			statsString = new StringBuilder();
+			out.setLength(start);
 		}
 		
 		try {
 			lock.unlock();
 		} catch (Exception e) {
-			Log.e(TAG, "An exception occured while unlocking in getEventStatsString: ", e);
-			//statsString = new StringBuilder();
+			Log.e(TAG, "An exception occured while unlocking in appendEventCountStats: ", e);
 		}
-		
-		return statsString.toString(); 
 	}
 	
 	/**
-	 * Returns a formatted string for the event string tuples collected by Insight.
+	 * Append the event counts of the windows closed since the previous call to the writer, in
+	 * the windowStart#windowEnd#eventID:count,...@ format. The times are in msec since the
+	 * start of the session.
 	 * 
-	 * @return formatted event string tuple string.
+	 * @param out
 	 */
-	public String getEventStringStatsString() {
-		StringBuilder statsString = new StringBuilder();
+	public void appendEventCountWindowStats(StatsWriter out) {
+		int start = out.length();
 		
 		try {
 			lock.lock();
+			eventCountWindows.appendTo(out);
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while generating stats string: ", e);
+			out.setLength(start);
+		}
+		
+		try {
+			lock.unlock();
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while unlocking in appendEventCountWindowStats: ", e);
+		}
+	}
+	
+	/**
+	 * Append the event value tuples collected by Insight to the writer.
+	 * 
+	 * @param out
+	 */
+	public void appendEventValueStats(StatsWriter out) {
+		int start = out.length();
+		
+		synchronized (reportLock) {
+			EventValueBuffer snapshot = null;
+			
+			try {
+				lock.lock();
+				
+				eventRing.drainTo(ringConsumer);
+				snapshot = swapEventValues();
+			} catch (Exception e) {
+				Log.e(TAG, "An exception occured while swapping the event values: ", e);
+			}
+			
+			try {
+				lock.unlock();
+			} catch (Exception e) {
+				Log.e(TAG, "An exception occured while unlocking in appendEventValueStats: ", e);
+			}
 			
-			for (int i = 0; i < eventStringList.size(); i++) {
-				statsString.append(eventStringList.elementAt(i).first + "#" + 
-						eventStringList.elementAt(i).value1 + "#" +
-						eventStringList.elementAt(i).value2 + "@");
+			// The new events are captured in the other list meanwhile.
+			try {
+				if (snapshot != null) {
+					snapshot.appendTo(out);
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "An exception occured while generating stats string: ", e);
+				out.setLength(start);
 			}
 			
 			// Clean up here. Reset the event value stats after processing the event.
-			resetEventString();
+			if (snapshot != null) {
+				snapshot.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Append the event value sketches collected by Insight to the writer. Empty unless
+	 * Constants.EVENT_VALUE_SKETCHES is enabled or the value buffer overflowed.
+	 * 
+	 * @param out
+	 */
+	public void appendEventSketchStats(StatsWriter out) {
+		int start = out.length();
+		
+		try {
+			lock.lock();
+			
+			eventRing.drainTo(ringConsumer);
+			
+			for (int slot = 0; slot < eventSketches.capacity(); slot++) {
+				ValueSketch sketch = eventSketches.valueAt(slot);
+				
+				if (eventSketches.isUsed(slot) && sketch.getCount() > 0) {
+					sketch.appendTo((int) eventSketches.keyAt(slot), out);
+					
+					// Clean up here. The sketch storage is reused for the next interval.
+					sketch.reset();
+				}
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while generating stats string: ", e);
+			out.setLength(start);
+		}
+		
+		try {
+			lock.unlock();
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured while unlocking in appendEventSketchStats: ", e);
+		}
+	}
+	
+	/**
+	 * Append the top strings of the events that crossed the cardinality threshold to the
+	 * writer. The counts are reset.
+	 * 
+	 * @param out
+	 */
+	public void appendEventTopStringStats(StatsWriter out) {
+		int start = out.length();
+		
+		try {
+			lock.lock();
+			
+			eventRing.drainTo(ringConsumer);
+			
+			for (int slot = 0; slot < eventTopStrings.capacity(); slot++) {
+				TopKTracker topStrings = eventTopStrings.valueAt(slot);
+				
+				if (eventTopStrings.isUsed(slot) && topStrings.getTotal() > 0) {
+					topStrings.appendTo((int) eventTopStrings.keyAt(slot), out);
+					
+					// Clean up here. The event stays in the top strings mode.
+					topStrings.reset();
+				}
+			}
 		} catch (Exception e) {
 			Log.e(TAG, "An exception occured while generating stats string: ", e);
-			statsString = new StringBuilder();
+			out.setLength(start);
 		}
 		
 		try {
 			lock.unlock();
 		} catch (Exception e) {
-			Log.e(TAG, "An exception occured while unlocking in getEventStringStatsString: ", e);
-			//statsString = new StringBuilder();
+			Log.e(TAG, "An exception occured while unlocking in appendEventTopStringStats: ", e);
 		}
+	}
+	
+	/**
+	 * Append the event string tuples collected by Insight to the writer.
+	 * 
+	 * @param out
+	 */
+	public void appendEventStringStats(StatsWriter out) {
+		int start = out.length();
 		
-		return statsString.toString(); 
+		synchronized (reportLock) {
+			EventStringBuffer snapshot = null;
+			
+			try {
+				lock.lock();
+				
+				eventRing.drainTo(ringConsumer);
+				snapshot = swapEventStrings();
+			} catch (Exception e) {
+				Log.e(TAG, "An exception occured while swapping the event strings: ", e);
+			}
+			
+			try {
+				lock.unlock();
+			} catch (Exception e) {
+				Log.e(TAG, "An exception occured while unlocking in appendEventStringStats: ", e);
+			}
+			
+			// The new events are captured in the other list meanwhile.
+			try {
+				if (snapshot != null) {
+					snapshot.appendTo(out);
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "An exception occured while generating stats string: ", e);
+				out.setLength(start);
+			}
+			
+			// Clean up here. Reset the event string stats after processing the event.
+			if (snapshot != null) {
+				snapshot.clear();
+			}
+		}
 	}
 }
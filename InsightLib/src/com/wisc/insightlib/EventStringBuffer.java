@@ -0,0 +1,252 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Stores the event-string tuples in growable parallel primitive arrays, like EventValueBuffer.
+ * The strings are dictionary encoded for the whole session, as apps usually log the same few
+ * strings (screen names, activity types etc.) over and over: each distinct string gets an ID,
+ * which is sent along with the string on its first occurrence in the session and alone on the
+ * later occurrences. Once the dictionary is full, the new strings are sent in full each time.
+ *
+ * The dictionary can be shared by several buffers, so that a buffer can be swapped out and
+ * serialized while the next one is being filled. Whether a tuple carries the string of its
+ * dictionary entry is decided when the tuple is added, so appendTo() and clear() don't touch
+ * the dictionary. Not thread safe: add() and removeOldest() must be serialized across all the
+ * buffers sharing the dictionary, and each buffer must be used by one thread at a time.
+ */
+public class EventStringBuffer {
+	private static final int INITIAL_CAPACITY = 64;  // Must be a power of 2.
+
+	/**
+	 * Dictionary ID sent for the strings that are not in the dictionary.
+	 */
+	private static final int NOT_IN_DICTIONARY = -1;
+
+	/**
+	 * The session dictionary of the event strings.
+	 */
+	public static class Dictionary {
+		private final HashMap<String, Integer> stringIndexMap = new HashMap<String, Integer>();
+		private final int maxSize;
+
+		/**
+		 * The entries whose string is carried by a tuple, either already serialized or still
+		 * buffered.
+		 */
+		private final BitSet carriedEntries = new BitSet();
+
+		/**
+		 * @param maxSize - Maximum number of distinct strings kept in the dictionary.
+		 */
+		public Dictionary(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		/**
+		 * Returns the dictionary ID of the string, adding the string if there is room, or
+		 * NOT_IN_DICTIONARY.
+		 */
+		private int getIndex(String value) {
+			Integer index = stringIndexMap.get(value);
+
+			if (index == null) {
+				if (stringIndexMap.size() >= maxSize) {
+					return NOT_IN_DICTIONARY;
+				}
+
+				index = stringIndexMap.size();
+				stringIndexMap.put(value, index);
+			}
+
+			return index;
+		}
+	}
+
+	private final Dictionary dictionary;
+
+	private int[] ids = new int[INITIAL_CAPACITY];
+	private long[] timestamps = new long[INITIAL_CAPACITY];
+	private int[] stringIndices = new int[INITIAL_CAPACITY];
+	private String[] values = new String[INITIAL_CAPACITY];
+	private boolean[] carriesEntry = new boolean[INITIAL_CAPACITY];  // The string is sent with the tuple.
+	private int start = 0;
+	private int size = 0;
+	private final DeltaOfDeltaEncoder timestampEncoder = new DeltaOfDeltaEncoder();
+
+	/**
+	 * @param dictionary - The session dictionary.
+	 */
+	public EventStringBuffer(Dictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Add an event-string tuple.
+	 *
+	 * @param eventID
+	 * @param timestamp
+	 * @param value
+	 */
+	public void add(int eventID, long timestamp, String value) {
+		if (size == ids.length) {
+			grow();
+		}
+
+		int slot = (start + size) & (ids.length - 1);
+		int index = dictionary.getIndex(value);
+
+		ids[slot] = eventID;
+		timestamps[slot] = timestamp;
+		stringIndices[slot] = index;
+		values[slot] = value;
+		carriesEntry[slot] = index == NOT_IN_DICTIONARY || !dictionary.carriedEntries.get(index);
+
+		if (index != NOT_IN_DICTIONARY) {
+			dictionary.carriedEntries.set(index);
+		}
+
+		size++;
+	}
+
+	private void grow() {
+		int capacity = ids.length * 2;
+
+		int[] newIds = new int[capacity];
+		long[] newTimestamps = new long[capacity];
+		int[] newStringIndices = new int[capacity];
+		String[] newValues = new String[capacity];
+		boolean[] newCarriesEntry = new boolean[capacity];
+
+		for (int i = 0; i < size; i++) {
+			int slot = slot(i);
+			newIds[i] = ids[slot];
+			newTimestamps[i] = timestamps[slot];
+			newStringIndices[i] = stringIndices[slot];
+			newValues[i] = values[slot];
+			newCarriesEntry[i] = carriesEntry[slot];
+		}
+
+		ids = newIds;
+		timestamps = newTimestamps;
+		stringIndices = newStringIndices;
+		values = newValues;
+		carriesEntry = newCarriesEntry;
+		start = 0;
+	}
+
+	private int slot(int index) {
+		return (start + index) & (ids.length - 1);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove the oldest tuple, if any. If it carried the string of its dictionary entry, the
+	 * next buffered tuple of the entry carries it instead.
+	 */
+	public void removeOldest() {
+		if (size == 0) {
+			return;
+		}
+
+		int index = stringIndices[start];
+
+		if (index != NOT_IN_DICTIONARY && carriesEntry[start]) {
+			boolean isCarried = false;
+
+			for (int i = 1; i < size && !isCarried; i++) {
+				int slot = slot(i);
+
+				if (stringIndices[slot] == index) {
+					carriesEntry[slot] = true;
+					isCarried = true;
+				}
+			}
+
+			if (!isCarried) {
+				dictionary.carriedEntries.clear(index);
+			}
+		}
+
+		values[start] = null;
+		start = (start + 1) & (ids.length - 1);
+		size--;
+	}
+
+	/**
+	 * Forget which dictionary entries were carried, e.g. after the report carrying them was
+	 * dropped, so that the first buffered tuple of each entry carries its string again, as
+	 * do the first tuples added later. Must be serialized like add().
+	 */
+	public void resetCarriedEntries() {
+		dictionary.carriedEntries.clear();
+
+		for (int i = 0; i < size; i++) {
+			int slot = slot(i);
+			int index = stringIndices[slot];
+
+			if (index != NOT_IN_DICTIONARY && !dictionary.carriedEntries.get(index)) {
+				carriesEntry[slot] = true;
+				dictionary.carriedEntries.set(index);
+			}
+		}
+	}
+
+	/**
+	 * Append the tuples to the writer. The tuples carrying the string of their
+	 * dictionary entry, i.e. its first occurrence in the session, are written as
+	 * id#timestamp#dictionaryID#string@, the later ones as id#timestamp#dictionaryID@ and the
+	 * strings not in the dictionary as id#timestamp#-1#string@. The timestamps are
+	 * delta-of-delta encoded.
+	 *
+	 * @param out
+	 */
+	public void appendTo(StatsWriter out) {
+		timestampEncoder.reset();
+
+		for (int i = 0; i < size; i++) {
+			int slot = slot(i);
+
+			out.append(ids[slot]).append('#')
+				.append(timestampEncoder.encode(timestamps[slot])).append('#')
+				.append(stringIndices[slot]);
+
+			if (carriesEntry[slot]) {
+				out.append('#').append(values[slot]);
+			}
+
+			out.append('@');
+		}
+	}
+
+	/**
+	 * Remove all the tuples. The capacity and the dictionary are retained.
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			values[slot(i)] = null;
+		}
+
+		start = 0;
+		size = 0;
+	}
+}
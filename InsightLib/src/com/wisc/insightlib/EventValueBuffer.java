@@ -0,0 +1,128 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+/**
+ * Stores the event-value tuples in growable parallel primitive arrays (one column per field),
+ * instead of one boxed tuple object per event. The arrays are used as a circular buffer, so that
+ * the oldest tuples can be dropped when the buffer is capped, and are retained when the buffer
+ * is cleared, so a steady stream of events doesn't allocate. Not thread safe.
+ */
+public class EventValueBuffer {
+	private static final int INITIAL_CAPACITY = 64;  // Must be a power of 2.
+
+	private int[] ids = new int[INITIAL_CAPACITY];
+	private long[] timestamps = new long[INITIAL_CAPACITY];
+	private double[] values = new double[INITIAL_CAPACITY];
+	private int start = 0;
+	private int size = 0;
+	private final DeltaOfDeltaEncoder timestampEncoder = new DeltaOfDeltaEncoder();
+
+	/**
+	 * Add an event-value tuple.
+	 *
+	 * @param eventID
+	 * @param timestamp
+	 * @param value
+	 */
+	public void add(int eventID, long timestamp, double value) {
+		if (size == ids.length) {
+			grow();
+		}
+
+		int slot = (start + size) & (ids.length - 1);
+		ids[slot] = eventID;
+		timestamps[slot] = timestamp;
+		values[slot] = value;
+		size++;
+	}
+
+	private void grow() {
+		int capacity = ids.length * 2;
+
+		int[] newIds = new int[capacity];
+		long[] newTimestamps = new long[capacity];
+		double[] newValues = new double[capacity];
+
+		for (int i = 0; i < size; i++) {
+			int slot = slot(i);
+			newIds[i] = ids[slot];
+			newTimestamps[i] = timestamps[slot];
+			newValues[i] = values[slot];
+		}
+
+		ids = newIds;
+		timestamps = newTimestamps;
+		values = newValues;
+		start = 0;
+	}
+
+	private int slot(int index) {
+		return (start + index) & (ids.length - 1);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getId(int index) {
+		return ids[slot(index)];
+	}
+
+	public long getTimestamp(int index) {
+		return timestamps[slot(index)];
+	}
+
+	public double getValue(int index) {
+		return values[slot(index)];
+	}
+
+	/**
+	 * Remove the oldest tuple, if any.
+	 */
+	public void removeOldest() {
+		if (size > 0) {
+			start = (start + 1) & (ids.length - 1);
+			size--;
+		}
+	}
+
+	/**
+	 * Append the tuples to the writer in the id#timestamp#value@ format. The timestamps
+	 * are delta-of-delta encoded.
+	 *
+	 * @param out
+	 */
+	public void appendTo(StatsWriter out) {
+		timestampEncoder.reset();
+
+		for (int i = 0; i < size; i++) {
+			int slot = slot(i);
+
+			out.append(ids[slot]).append('#')
+				.append(timestampEncoder.encode(timestamps[slot])).append('#')
+				.append(values[slot]).append('@');
+		}
+	}
+
+	/**
+	 * Remove all the tuples. The capacity is retained.
+	 */
+	public void clear() {
+		start = 0;
+		size = 0;
+	}
+}
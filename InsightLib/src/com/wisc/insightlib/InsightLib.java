@@ -15,6 +15,9 @@
 
 package com.wisc.insightlib;
 
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Looper;
@@ -80,12 +83,56 @@ public class InsightLib {
 	 */
 	//private static Timer locUpdateTimer;
 	private static LocationUpdateManager locationUpdateManager = null;
-	private static Thread locationUpdateThread = null;
 	
 	/**
 	 * Reporting the statistics periodically.
 	 */
-	private static Thread sendEventsThread = null;
+	private static InsightScheduler.PeriodicTask sendEventsTask = null;
+	
+	/**
+	 * Draining the captured events into the event statistics periodically.
+	 */
+	private static InsightScheduler.PeriodicTask drainEventsTask = null;
+	
+	/**
+	 * Closing the event count windows periodically.
+	 */
+	private static InsightScheduler.PeriodicTask eventWindowTask = null;
+	
+	/**
+	 * Freeing the slots of the completed downloads periodically.
+	 */
+	private static InsightScheduler.PeriodicTask downloadSweepTask = null;
+	
+	/**
+	 * Sampling the throughput of the network interfaces periodically.
+	 */
+	private static InsightScheduler.PeriodicTask throughputTask = null;
+	
+	/**
+	 * The periodic stats reports that couldn't be sent, oldest first, and their total length.
+	 * Each one is resent as a message of its own before the next report, as the timestamps of
+	 * each section are delta-of-delta encoded from the start of the report. Guarded by
+	 * pendingStatsReports.
+	 */
+	private static final ArrayList<StatsWriter> pendingStatsReports = new ArrayList<StatsWriter>();
+	private static int pendingStatsLength = 0;
+	
+	/**
+	 * The stats reports and the end of session statistics are written into this reused
+	 * buffer. Guarded by pendingStatsReports.
+	 */
+	private static final StatsWriter statsReportWriter = new StatsWriter();
+	
+	/**
+	 * Whether the measurements are currently paused for the power save mode.
+	 */
+	private static boolean isPowerSaveApplied = false;
+	
+	/**
+	 * The looper of the measurement thread. The location updates are processed on this thread.
+	 */
+	private static Looper measurementLooper = null;
 	
 	/**
 	 * Name of the process to be monitored.
@@ -106,6 +153,11 @@ public class InsightLib {
 	 * Stores the event related statistics
 	 */
 	private static EventStatistics eventStats = null;
+	
+	/**
+	 * Stores the timed span statistics.
+	 */
+	private static SpanTracker spanTracker = null;
 
 	/**
 	 * Denotes the end of a session.
@@ -132,6 +184,7 @@ public class InsightLib {
 
 			if (!endSessionThread.isSessionEndComplete()) {
 				endSessionThread.cancelEndSession();
+				PowerStatePolicy.setForeground(true);
 				Log.w(TAG, "Continuing existing session... Active onStarts: " +
 						InsightLib.countActiveOnStarts);
 			} else if (InsightLib.countActiveOnStarts == 1) {
@@ -149,6 +202,10 @@ public class InsightLib {
 				}
 				
 				InsightLib.sessionID = Utils.getSessionIdString();
+				
+				// Start measuring the overhead of Insight for the new session.
+				SelfStats.reset();
+				PowerStatePolicy.reset();
 
 				// Reset the library state.
 				resetLibrary("startSession");
@@ -168,6 +225,11 @@ public class InsightLib {
 				if (networkTrafficStats == null) {
 					networkTrafficStats = new NetworkTrafficStats(packageUid);
 				}
+				
+				// Initialize a SpanTracker object. Initialize only if reset.
+				if (spanTracker == null) {
+					spanTracker = new SpanTracker(mContextApp, Constants.MAX_OPEN_SPANS);
+				}
 
 				// Initialize the uid, networkTrafficStats object and start the ping
 				// and resource measurement threads.
@@ -202,6 +264,7 @@ public class InsightLib {
 		
 			Log.w(TAG, "Waiting for " + Constants.SESSION_END_WAIT / 1000 + " seconds before ending session...");
 			endSessionThread.endSession();
+			PowerStatePolicy.setForeground(false);
 		}
 	}
 	
@@ -239,9 +302,42 @@ public class InsightLib {
 			Log.e(TAG, " Exception while processing end session: " + e.toString());
 		}
 
+		try {
+			mainStatsManager.sendBatterySummaryMessage();
+		} catch (Exception e) {
+			Log.e(TAG, " Exception sending the battery summary message: " + e.toString());
+		}
+
+		try {
+			mainStatsManager.sendSelfStatsMessage();
+		} catch (Exception e) {
+			Log.e(TAG, " Exception sending the self stats message: " + e.toString());
+		}
+
+		try {
+			synchronized (pendingStatsReports) {
+				// The reports that can't be sent by now are lost.
+				if (!sendPendingStatsReports()) {
+					for (int i = 0; i < pendingStatsReports.size(); i++) {
+						dropStatsReport(pendingStatsReports.get(i));
+					}
+					
+					pendingStatsReports.clear();
+					pendingStatsLength = 0;
+				}
+			}
+		} catch (Exception e) {
+			Log.e(TAG, " Exception resending the unsent stats reports: " + e.toString());
+		}
+
 		try {
 			Log.i(TAG, "Sending the endSession message..");
-			mainStatsManager.sendEndSessionMessage(getOverallStatsString());
+			
+			synchronized (pendingStatsReports) {
+				statsReportWriter.reset();
+				writeOverallStats(statsReportWriter);
+				mainStatsManager.sendEndSessionMessage(statsReportWriter);
+			}
 		} catch (Exception e) {
 			Log.e(TAG, " Exception sending the endSession message: " + e.toString());
 		}
@@ -267,7 +363,7 @@ public class InsightLib {
 	 * 
 	 * @param eventID The id of the event denoted by an integer.
 	 */
-	public static void captureEvent(Integer eventID) {
+	public static void captureEvent(int eventID) {
 		try {
 			eventStats.captureEvent(eventID);
 		} catch (Exception e) {
@@ -275,6 +371,53 @@ public class InsightLib {
 		}
 	}
 
+	/**
+	 * Boxed variant of captureEvent(int), kept for the binary compatibility with the apps
+	 * built against the earlier versions.
+	 * 
+	 * @param eventID The id of the event denoted by an integer.
+	 * 
+	 * @deprecated Use captureEvent(int).
+	 */
+	@Deprecated
+	public static void captureEvent(Integer eventID) {
+		try {
+			captureEvent(eventID.intValue());
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while capturing event: " + e.toString());
+		}
+	}
+
+	/**
+	 * Logs count occurrences of the event denoted by the eventID, e.g. the number of frames
+	 * rendered since the previous call. It adds count to the counter for the input event.
+	 * 
+	 * @param eventID The id of the event denoted by an integer.
+	 * @param count The number of occurrences.
+	 */
+	public static void captureEvent(int eventID, long count) {
+		try {
+			eventStats.captureEvent(eventID, count);
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while capturing event: " + e.toString());
+		}
+	}
+	
+	/**
+	 * Logs one occurrence of each of the first n events of the input array. Meant for the
+	 * callers that record many events in a loop; the array can be reused across the calls.
+	 * 
+	 * @param eventIDs The ids of the events.
+	 * @param n The number of events to log.
+	 */
+	public static void captureEvents(int[] eventIDs, int n) {
+		try {
+			eventStats.captureEvents(eventIDs, n);
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while capturing events: " + e.toString());
+		}
+	}
+
 	/**
 	 * Logs an event corresponding to the eventID and the value corresponding to
 	 * the event instance.
@@ -282,7 +425,7 @@ public class InsightLib {
 	 * @param eventID The id of the event denoted by an integer.
 	 * @param value The value corresponding to the event.
 	 */
-	public static void captureEventValue(Integer eventID, Double value) {
+	public static void captureEventValue(int eventID, double value) {
 		try {
 			eventStats.captureEventValue(eventID, value);
 		} catch (Exception e) {
@@ -290,6 +433,41 @@ public class InsightLib {
 		}
 	}
 	
+	/**
+	 * Boxed variant of captureEventValue(int, double), kept for the binary compatibility with
+	 * the apps built against the earlier versions.
+	 * 
+	 * @param eventID The id of the event denoted by an integer.
+	 * @param value The value corresponding to the event.
+	 * 
+	 * @deprecated Use captureEventValue(int, double).
+	 */
+	@Deprecated
+	public static void captureEventValue(Integer eventID, Double value) {
+		try {
+			captureEventValue(eventID.intValue(), value.doubleValue());
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while capturing event-value: " + e.toString());
+		}
+	}
+	
+	/**
+	 * Logs the first n event-value tuples of the input arrays in one step, e.g. the values
+	 * measured during a frame. The tuples share one timestamp. The arrays can be reused across
+	 * the calls.
+	 * 
+	 * @param eventIDs The ids of the events.
+	 * @param values The values corresponding to the events.
+	 * @param n The number of tuples to log.
+	 */
+	public static void captureEventValues(int[] eventIDs, double[] values, int n) {
+		try {
+			eventStats.captureEventValues(eventIDs, values, n);
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while capturing event-values: " + e.toString());
+		}
+	}
+	
 	/**
 	 * Logs an event corresponding to the eventID and the value string corresponding to
 	 * the event instance.
@@ -297,7 +475,7 @@ public class InsightLib {
 	 * @param eventID The id of the event denoted by an integer.
 	 * @param value The value corresponding to the event.
 	 */
-	public static void captureEventString(Integer eventID, String value) {
+	public static void captureEventString(int eventID, String value) {
 		try {
 			eventStats.captureEventString(eventID, value);
 		} catch (Exception e) {
@@ -305,11 +483,89 @@ public class InsightLib {
 		}
 	}
 	
+	/**
+	 * Boxed variant of captureEventString(int, String), kept for the binary compatibility
+	 * with the apps built against the earlier versions.
+	 * 
+	 * @param eventID The id of the event denoted by an integer.
+	 * @param value The value corresponding to the event.
+	 * 
+	 * @deprecated Use captureEventString(int, String).
+	 */
+	@Deprecated
+	public static void captureEventString(Integer eventID, String value) {
+		try {
+			captureEventString(eventID.intValue(), value);
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while capturing event-value string: " + e.toString());
+		}
+	}
+	
+	/**
+	 * Enables or disables the aggregated mode for the event values. In the aggregated mode, the
+	 * values of each event are summarized in a sketch (count, sum, min, max and a histogram)
+	 * and only the sketches are sent to the server, instead of every event-value tuple.
+	 * 
+	 * @param enabled
+	 */
+	public static void setEventValueSketches(boolean enabled) {
+		Constants.EVENT_VALUE_SKETCHES = enabled;
+	}
+	
+	/**
+	 * Sets what to do with the new event values and strings once the number buffered
+	 * between two stats reports reaches its cap. The default is to aggregate the values into
+	 * sketches and to drop the strings.
+	 * 
+	 * @param policy
+	 */
+	public static void setEventOverflowPolicy(EventOverflowPolicy policy) {
+		if (policy != null) {
+			Constants.EVENT_OVERFLOW_POLICY = policy;
+		}
+	}
+	
+	/**
+	 * Sets how often the byte and packet counters of the network interfaces are sampled,
+	 * in msec. Takes effect from the next session.
+	 * 
+	 * @param interval
+	 */
+	public static void setThroughputSampleInterval(int interval) {
+		if (interval > 0) {
+			Constants.THROUGHPUT_SAMPLE_INTERVAL = interval;
+		}
+	}
+	
+	/**
+	 * Applies the per event sampling rates received from the server to the current session.
+	 * 
+	 * @param rates - Map from the eventID to its sampling rate.
+	 */
+	static void setEventSamplingRates(IntDoubleHashMap rates) {
+		EventStatistics currEventStats = eventStats;
+		
+		if (currEventStats != null) {
+			currEventStats.setSampler(new EventSampler(rates, deviceID, sessionID));
+		}
+	}
+	
+	/**
+	 * Called on the connectivity changes, to rediscover the network interfaces.
+	 */
+	static void onConnectivityChanged() {
+		NetworkTrafficStats currNetworkTrafficStats = networkTrafficStats;
+		
+		if (currNetworkTrafficStats != null) {
+			currNetworkTrafficStats.onConnectivityChanged();
+		}
+	}
+	
 	/**
 	 * Call this method to denote the start of a new download. This method
-	 * should be called before starting the download. Only one instance
-	 * of a download can be captured at a time. This method should be
-	 * paired with a downloadEnded() method call after the end of the download. 
+	 * should be called before starting the download. Many downloads can be
+	 * captured at the same time. This method should be paired with a
+	 * downloadEnded() method call after the end of the download. 
 	 */
 	public static long downloadStarted() {
 		try {
@@ -335,6 +591,71 @@ public class InsightLib {
 		}
 	}
 	
+	/**
+	 * Call this method to denote the end of the current download, along with the bytes
+	 * transferred by the download itself (e.g., counted by the caller on the download
+	 * streams). Unlike downloadEnded(long), the bytes of the concurrent downloads are not
+	 * attributed to this download.
+	 * 
+	 * @param downloadId The id returned by downloadStarted().
+	 * @param txBytes The bytes sent by the download.
+	 * @param rxBytes The bytes received by the download.
+	 */
+	public static void downloadEnded(long downloadId, long txBytes, long rxBytes) {
+		downloadEnded(downloadId, txBytes, rxBytes, -1);
+	}
+	
+	/**
+	 * Same as downloadEnded(long, long, long), along with the time from downloadStarted() to
+	 * the first byte received by the download. The Counting* stream, InstrumentedSocket and
+	 * InstrumentedConnection wrappers call this method on their own.
+	 * 
+	 * @param downloadId The id returned by downloadStarted().
+	 * @param txBytes The bytes sent by the download.
+	 * @param rxBytes The bytes received by the download.
+	 * @param timeToFirstByte The msec to the first received byte, or -1 if unknown.
+	 */
+	public static void downloadEnded(long downloadId, long txBytes, long rxBytes,
+			long timeToFirstByte) {
+		try {
+			networkTrafficStats.downloadEnded(downloadId, txBytes, rxBytes, timeToFirstByte);
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while capturing downloadEnd: " + e.toString());
+		}
+	}
+	
+	/**
+	 * Starts a timed span of the input type, e.g. a screen load, a database query or an API
+	 * call. The span should be ended by passing the returned token to endSpan(). The latency
+	 * and the network type at the start and end of the span are aggregated per span type.
+	 * 
+	 * @param spanType The type of the span denoted by an integer.
+	 * 
+	 * @return token identifying the span.
+	 */
+	public static long startSpan(int spanType) {
+		try {
+			return spanTracker.startSpan(spanType);
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while starting span: " + e.toString());
+		}
+		
+		return SpanTracker.INVALID_TOKEN;
+	}
+	
+	/**
+	 * Ends the timed span denoted by the token returned by startSpan().
+	 * 
+	 * @param token
+	 */
+	public static void endSpan(long token) {
+		try {
+			spanTracker.endSpan(token);
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while ending span: " + e.toString());
+		}
+	}
+	
 	/**
 	 * Set the deviceID for the application.
 	 * 
@@ -394,6 +715,7 @@ public class InsightLib {
 			new Thread(new Runnable() {
 				public void run() {
 					Looper.prepare();
+					measurementLooper = Looper.myLooper();
 					try {
 						/*
 						// Obtain the uid for the process. 
@@ -421,35 +743,91 @@ public class InsightLib {
 						// Run the ping test.
 						pingClient = new PingClient(mContext, deviceID, sessionID);
 
-						// Start obtaining the location updates.
+						// Start obtaining the location updates. The location updates are
+						// processed on this looper thread.
 						locationUpdateManager = 
 							new LocationUpdateManager(mContext, mainStatsManager);
-
-						locationUpdateThread = new Thread(locationUpdateManager, "LocationUpdateThread");
-						locationUpdateThread.setDaemon(true);
-						locationUpdateThread.start();
+						locationUpdateManager.startLocationUpdates();
 						
 						// Start the periodic event reporting updates.
-						sendEventsThread = new Thread(new Runnable() {
+						sendEventsTask = InsightScheduler.schedulePeriodic(new Runnable() {
 							
 							public void run() {
-								while (true) {
-									try {
-										// TODO: Move up.
-										//Log.i(TAG, "Sleeping now " + Constants.CURRENT_STATS_UPDATE_FREQUENCY  + "..." );
-										Thread.sleep(Constants.CURRENT_STATS_UPDATE_FREQUENCY);
-
-										//Log.i(TAG, "Sending now...");
-										mainStatsManager.sendCurrentStatsMessage(InsightLib.getCurrStatsString());
-									} catch (InterruptedException e) {
-										Log.e("sendEventThread", "InterruptedException: " + e);
-									} catch (Exception e) {
-										Log.e("sendEventThread", "Exception: " + e);
+								try {
+									// The reports are held back for the end of session message once
+									// Insight exceeded its overhead budget, which lasts for the session.
+									InsightScheduler.PeriodicTask task = sendEventsTask;
+									
+									if (SelfStats.isThrottled() && task != null) {
+										task.cancel();
+										return;
 									}
+									
+									//Log.i(TAG, "Sending now...");
+									sendStatsReport();
+								} catch (Exception e) {
+									Log.e("sendEventTask", "Exception: " + e);
+								}
+							}
+						}, Constants.CURRENT_STATS_UPDATE_FREQUENCY, Constants.CURRENT_STATS_UPDATE_FREQUENCY,
+								true, true);
+						
+						// Start draining the captured events.
+						drainEventsTask = InsightScheduler.schedulePeriodic(new Runnable() {
+							
+							public void run() {
+								EventStatistics currEventStats = eventStats;
+								
+								if (currEventStats != null) {
+									currEventStats.drainEventRing();
+								}
+							}
+						}, Constants.EVENT_RING_DRAIN_INTERVAL, Constants.EVENT_RING_DRAIN_INTERVAL, true);
+						
+						// Start closing the event count windows.
+						eventWindowTask = InsightScheduler.schedulePeriodic(new Runnable() {
+							
+							public void run() {
+								EventStatistics currEventStats = eventStats;
+								
+								if (currEventStats != null) {
+									currEventStats.closeEventCountWindow();
+								}
+							}
+						}, Constants.EVENT_COUNT_WINDOW, Constants.EVENT_COUNT_WINDOW, true);
+						
+						// Start sweeping the completed downloads.
+						downloadSweepTask = InsightScheduler.schedulePeriodic(new Runnable() {
+							
+							public void run() {
+								NetworkTrafficStats currNetworkTrafficStats = networkTrafficStats;
+								
+								if (currNetworkTrafficStats != null) {
+									currNetworkTrafficStats.sweepDownloads();
+								}
+							}
+						}, Constants.DOWNLOAD_SWEEP_INTERVAL, Constants.DOWNLOAD_SWEEP_INTERVAL, true);
+						
+						// Start sampling the interface throughput and the traffic counters.
+						throughputTask = InsightScheduler.schedulePeriodic(new Runnable() {
+							
+							public void run() {
+								// Stop waking up every few seconds once Insight exceeded its overhead
+								// budget. The traffic counters are still read at the end of the session.
+								InsightScheduler.PeriodicTask task = throughputTask;
+								
+								if (SelfStats.isThrottled() && task != null) {
+									task.cancel();
+									return;
+								}
+								
+								NetworkTrafficStats currNetworkTrafficStats = networkTrafficStats;
+								
+								if (currNetworkTrafficStats != null) {
+									currNetworkTrafficStats.sampleThroughput();
 								}
 							}
-						});
-						sendEventsThread.start();
+						}, Constants.THROUGHPUT_SAMPLE_INTERVAL, Constants.THROUGHPUT_SAMPLE_INTERVAL, true);
 					} catch (Exception e) {
 						Log.e(TAG , "startMeasurmentThreads: Exception " + e);
 						return;
@@ -481,8 +859,16 @@ public class InsightLib {
 					e.toString());
 		}
 		
+		// Reset the spanTracker object by setting it to null.
+		spanTracker = null;
+		
 		// Reset the eventStats object by setting it to null.
 		try {
+			synchronized (pendingStatsReports) {
+				pendingStatsReports.clear();
+				pendingStatsLength = 0;
+			}
+			
 			if (eventStats != null) {
 				eventStats = null;
 				//Log.i(TAG , "Removed the existing eventStats object.");
@@ -529,95 +915,309 @@ public class InsightLib {
 		}
 		
 		try {
-			if (sendEventsThread != null) {
-				sendEventsThread.interrupt();
-				sendEventsThread = null;
+			if (sendEventsTask != null) {
+				sendEventsTask.cancel();
+				sendEventsTask = null;
 				
-				//Log.i(TAG , "Stopped existing sendEventsThread thread.");
+				//Log.i(TAG , "Stopped existing sendEventsTask.");
+			}
+			
+			if (drainEventsTask != null) {
+				drainEventsTask.cancel();
+				drainEventsTask = null;
+			}
+			
+			if (eventWindowTask != null) {
+				eventWindowTask.cancel();
+				eventWindowTask = null;
+			}
+			
+			if (downloadSweepTask != null) {
+				downloadSweepTask.cancel();
+				downloadSweepTask = null;
+			}
+			
+			if (throughputTask != null) {
+				throughputTask.cancel();
+				throughputTask = null;
 			}
 		} catch (Exception e) {
-			Log.e(TAG, "Exception while resetting sendEventsThread: " +
+			Log.e(TAG, "Exception while resetting sendEventsTask: " +
+					e.toString());
+		}
+		
+		// Cancel any remaining periodic tasks and stop the measurement looper thread.
+		try {
+			InsightScheduler.cancelAll();
+			isPowerSaveApplied = false;
+			
+			if (measurementLooper != null) {
+				measurementLooper.quit();
+				measurementLooper = null;
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while cancelling the periodic tasks: " +
 					e.toString());
 		}
 	}
 
 	/**
-	 * Generate a serialized string containing the event related statistics, 
-	 * application data usage statistics, network download statistics etc.  
-	 * @return statsString
+	 * Stop the periodic reporting and sampling once the MainStatsManager gave up on reaching
+	 * the server, so that the data isn't collected and queued for the rest of the session. The
+	 * unsent reports are dropped, and the captured events only fill up the bounded event ring
+	 * as it is no longer drained. The session itself ends as usual. Called on the sender thread.
 	 */
-	private static String getOverallStatsString() {
-		StringBuilder overallStatsString = new StringBuilder();
+	static void onServerUnreachable() {
+		Log.w(TAG, "Server unreachable. Stopping the event reporting.");
+		
+		try {
+			InsightScheduler.PeriodicTask[] tasks = {sendEventsTask, drainEventsTask,
+					eventWindowTask, downloadSweepTask, throughputTask};
+			
+			for (int i = 0; i < tasks.length; i++) {
+				if (tasks[i] != null) {
+					tasks[i].cancel();
+				}
+			}
+			
+			synchronized (pendingStatsReports) {
+				for (int i = 0; i < pendingStatsReports.size(); i++) {
+					dropStatsReport(pendingStatsReports.get(i));
+				}
+				
+				pendingStatsReports.clear();
+				pendingStatsLength = 0;
+			}
+			
+			PingClient currPingClient = pingClient;
+			
+			if (currPingClient != null) {
+				currPingClient.stopCurrentThread("ServerUnreachable");
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while stopping the event reporting: " + e.toString());
+		}
+	}
 
-		//Log.w(TAG, "Event: " + InsightLib.eventCountMap.size() + " " + 
-		//		InsightLib.eventList.size());
+	/**
+	 * Pause or resume the measurements according to the current power state. The scheduler slows
+	 * down the periodic tasks and the ping client is stopped while paused. On resume, the ping
+	 * client is restarted. The pauses are reported in the self statistics.
+	 * Called on the scheduler thread by PowerStatePolicy.
+	 */
+	static synchronized void applyPowerState() {
+		boolean isPaused = PowerStatePolicy.isPaused();
+		
+		if (isPaused == isPowerSaveApplied || mainStatsManager == null) {
+			return;
+		}
+		
+		isPowerSaveApplied = isPaused;
+		
+		// Sample the counters at the transition, so that the samples on either side of it
+		// don't span both rates.
+		NetworkTrafficStats currNetworkTrafficStats = networkTrafficStats;
+		
+		if (currNetworkTrafficStats != null) {
+			currNetworkTrafficStats.sampleThroughput();
+		}
+		
+		InsightScheduler.setPowerSave(isPaused);
+		
+		try {
+			if (isPaused) {
+				if (pingClient != null) {
+					pingClient.stopCurrentThread("PowerSave");
+					pingClient = null;
+				}
+			} else {
+				if (pingClient == null && !SelfStats.isThrottled()
+						&& mainStatsManager.isSessionRunning()) {
+					pingClient = new PingClient(mContext, deviceID, sessionID);
+				}
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while applying the power state: " + e.toString());
+		}
+	}
 
+	/**
+	 * Write the statistics of the whole session into the writer: the application data usage
+	 * statistics, the session event counts, the current stats sections and the overflow
+	 * statistics, separated by "$".
+	 * 
+	 * @param out
+	 */
+	private static void writeOverallStats(StatsWriter out) {
 		if (networkTrafficStats != null) {
-			overallStatsString.append(networkTrafficStats.getNetworkStatsString());
+			networkTrafficStats.appendNetworkStats(out);
 		}
-		overallStatsString.append("$");
+		out.append('$');
 		
 		if (eventStats != null) {
-			overallStatsString.append(eventStats.getEventCountStatsString());
-			overallStatsString.append("$");
+			eventStats.appendEventCountStats(out);
+		}
+		out.append('$');
 		
-			overallStatsString.append(eventStats.getEventValueStatsString());
-			overallStatsString.append("$");
+		// The event values, strings, downloads, sketches, spans, sampling weights, top strings,
+		// event count windows and interface throughput.
+		writeCurrStatsSections(out);
+		out.append('$');
 		
-			overallStatsString.append(eventStats.getEventStringStatsString());
-			overallStatsString.append("$");
-		} else {
-			overallStatsString.append("$$$");
+		if (eventStats != null) {
+			eventStats.appendOverflowStats(out);
 		}
 		
 		if (networkTrafficStats != null) {
-			overallStatsString.append(networkTrafficStats.getDownloadStatsString());
+			out.append('#');
+			networkTrafficStats.appendOverflowStats(out);
 		}
 
-		Log.w(TAG, "Event: " + overallStatsString.toString());
-		return overallStatsString.toString();
+		Log.w(TAG, "Event: " + out.length() + " bytes");
 	}
 	
 	/**
-	 * IMP: event counters not sent because they are counted throughout the session.
-	 * Generate a serialized string containing the event related statistics, 
-	 * network download statistics etc.  
-	 * @return statsString
+	 * IMP: the session event counters are not sent, only the counts of the closed windows.
+	 * Write the sections containing the event related statistics, network download
+	 * statistics etc. into the writer, separated by "$": event values, event strings,
+	 * downloads, event value sketches, timed spans, event sampling weights, top event
+	 * strings, event count windows and interface throughput. Each section is serialized
+	 * straight into the writer.
+	 * 
+	 * @param out
 	 */
-	private static String getCurrStatsString() {
-		StringBuilder currStatsString = new StringBuilder();
+	private static synchronized void writeCurrStatsSections(StatsWriter out) {
+		EventStatistics currEventStats = eventStats;
+		NetworkTrafficStats currNetworkTrafficStats = networkTrafficStats;
+		SpanTracker currSpanTracker = spanTracker;
 
-		if (eventStats != null) {
-			currStatsString.append(eventStats.getEventValueStatsString());
+		if (currEventStats != null) {
+			currEventStats.appendEventValueStats(out);
 		}
-		currStatsString.append("$");
+		out.append('$');
 		
-		if (eventStats != null) {
-			currStatsString.append(eventStats.getEventStringStatsString());
+		if (currEventStats != null) {
+			currEventStats.appendEventStringStats(out);
 		}
-		currStatsString.append("$");
+		out.append('$');
 		
-		if (networkTrafficStats != null) {
-			currStatsString.append(networkTrafficStats.getDownloadStatsString());
+		if (currNetworkTrafficStats != null) {
+			currNetworkTrafficStats.appendDownloadStats(out);
+		}
+		out.append('$');
+		
+		if (currEventStats != null) {
+			currEventStats.appendEventSketchStats(out);
+		}
+		out.append('$');
+		
+		if (currSpanTracker != null) {
+			currSpanTracker.appendSpanStats(out);
+		}
+		out.append('$');
+		
+		if (currEventStats != null) {
+			currEventStats.appendSamplingStats(out);
+		}
+		out.append('$');
+		
+		if (currEventStats != null) {
+			currEventStats.appendEventTopStringStats(out);
+		}
+		out.append('$');
+		
+		if (currEventStats != null) {
+			currEventStats.appendEventCountWindowStats(out);
+		}
+		out.append('$');
+		
+		if (currNetworkTrafficStats != null) {
+			currNetworkTrafficStats.appendThroughputStats(out);
+		}
+	}
+	
+	/**
+	 * Write and send a periodic stats report, after the earlier reports that couldn't be
+	 * sent. The report is kept to be resent if it can't be sent.
+	 */
+	private static void sendStatsReport() {
+		synchronized (pendingStatsReports) {
+			statsReportWriter.reset();
+			writeCurrStatsSections(statsReportWriter);
+			
+			if (!sendPendingStatsReports()
+					|| !mainStatsManager.sendCurrentStatsMessage(statsReportWriter)) {
+				queueStatsReport(statsReportWriter);
+			}
+		}
+	}
+	
+	/**
+	 * Resend the reports that couldn't be sent, oldest first. Called holding the
+	 * pendingStatsReports lock.
+	 * 
+	 * @return true if all the reports were sent.
+	 */
+	private static boolean sendPendingStatsReports() {
+		while (!pendingStatsReports.isEmpty()) {
+			StatsWriter statsReport = pendingStatsReports.get(0);
+			
+			if (!mainStatsManager.sendCurrentStatsMessage(statsReport)) {
+				return false;
+			}
+			
+			pendingStatsReports.remove(0);
+			pendingStatsLength -= statsReport.length();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Keep a copy of a stats report that couldn't be sent, to be resent before the next
+	 * report. The report is dropped if the unsent reports would exceed
+	 * Constants.MAX_PENDING_STATS_LENGTH. Called holding the pendingStatsReports lock.
+	 * 
+	 * @param statsReport
+	 */
+	private static void queueStatsReport(StatsWriter statsReport) {
+		if (pendingStatsLength + statsReport.length() <= Constants.MAX_PENDING_STATS_LENGTH) {
+			pendingStatsReports.add(new StatsWriter().append(statsReport));
+			pendingStatsLength += statsReport.length();
+			return;
+		}
+		
+		dropStatsReport(statsReport);
+	}
+	
+	/**
+	 * Count the rows of a stats report dropped as it couldn't be sent.
+	 * 
+	 * @param statsReport
+	 */
+	private static void dropStatsReport(StatsWriter statsReport) {
+		int numRows = statsReport.count('@');
+		
+		Log.w(TAG, "Dropping unsent stats report with " + numRows + " rows");
+		
+		if (eventStats != null) {
+			eventStats.reportRowsDropped(numRows);
 		}
-
-		//Log.w(TAG, "Event: " + currStatsString.toString());
-		return currStatsString.toString();
 	}
 	
 	private static class EndSessionThreadRunner implements Runnable {
 		
 		private static final String TAG = "EndSessionThreadRunner";
 		
-		private Thread endSessionThread = null;
-		private boolean sessionEndComplete = true;
+		private ScheduledFuture<?> endSessionTask = null;
+		private volatile boolean sessionEndComplete = true;
 		
 		public boolean isSessionEndComplete() {
 			return sessionEndComplete;
 		}
 
 		private void resetState() {
-			endSessionThread = null;
+			endSessionTask = null;
 			sessionEndComplete = true;
 		}
 		
@@ -627,17 +1227,19 @@ public class InsightLib {
 		
 		public void endSession() {
 			if (sessionEndComplete) {
-				endSessionThread = new Thread(this);
-				endSessionThread.start();
+				sessionEndComplete = false;
+				endSessionTask = InsightScheduler.scheduleOnce(this, Constants.SESSION_END_WAIT, true);
 			} else {
 				Log.w(TAG, "Session end already in progress");
 			}
 		}
 		
 		public void cancelEndSession() {
-			if (!sessionEndComplete) {  // Means the thread is waiting to end session.
+			if (!sessionEndComplete) {  // Means the task is waiting to end session.
 				try {
-					endSessionThread.interrupt();
+					if (endSessionTask != null) {
+						endSessionTask.cancel(false);
+					}
 				} catch (Exception e) {
 					Log.e(TAG + ": stopStatsCollection", "Exception while cancelling resourceGatheringInfo timer");
 				}
@@ -650,15 +1252,6 @@ public class InsightLib {
 		}
 		
 		public void run() {
-			sessionEndComplete = false;
-			
-			try {
-				Thread.sleep(Constants.SESSION_END_WAIT);
-			} catch (InterruptedException e) {
-				Log.e(TAG, "Interrupted while waiting: Not doing anything.. " + e.toString());
-				return;
-			}
-			
 			// If Insight.finish() is called from onDestroy(), then no need to call this again.
 			if (!sessionEndComplete) {
 				sessionEndComplete = true;
@@ -0,0 +1,346 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * A single scheduler shared by all the periodic Insight tasks (resource sampling, stats
+ * reporting, location updates, pings etc.). The non-blocking tasks (the samplers, the event
+ * ring drain, the window tasks) run on a small pool of daemon worker threads. The blocking
+ * tasks (the sends to the server, the pings and the resource sampling, which runs top) run
+ * on a single sender thread of their own, so that a stalled send doesn't hold up the
+ * samplers. The task intervals and start times are aligned to common boundaries, so that the
+ * tasks wake up the device together instead of each one at its own time. A run that starts a
+ * whole interval late is skipped, so that the missed runs don't fire back to back.
+ *
+ * While in power save mode (screen off or application in background), the pausable tasks are
+ * slowed down by Constants.POWER_SAVE_SLOWDOWN, or paused if the slowdown is 0. They run once
+ * to catch up after the power save mode ends.
+ */
+public class InsightScheduler {
+	/**
+	 * Constants.
+	 */
+	private static final String TAG = "InsightScheduler";
+
+	/**
+	 * The worker pool and the sender thread. Created on first use and kept across sessions.
+	 */
+	private static ScheduledThreadPoolExecutor executor = null;
+	private static ScheduledThreadPoolExecutor senderExecutor = null;
+
+	/**
+	 * Start time of the scheduler. The wakeup boundaries are multiples of
+	 * Constants.SCHEDULER_ALIGNMENT from this time.
+	 */
+	private static long epochNanos;
+
+	/**
+	 * The periodic tasks registered since the last cancelAll() call.
+	 */
+	private static final ArrayList<PeriodicTask> periodicTasks = new ArrayList<PeriodicTask>();
+
+	/**
+	 * Whether the power save mode is on.
+	 */
+	private static boolean isPowerSave = false;
+
+	/**
+	 * Returns the worker pool, or the sender thread for the blocking tasks, creating them if
+	 * needed.
+	 *
+	 * @param isBlocking
+	 */
+	private static synchronized ScheduledThreadPoolExecutor getExecutor(boolean isBlocking) {
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(Constants.SCHEDULER_THREADS,
+					new DaemonThreadFactory(TAG));
+			senderExecutor = new ScheduledThreadPoolExecutor(1,
+					new DaemonThreadFactory(TAG + "-sender"));
+
+			epochNanos = System.nanoTime();
+		}
+
+		return isBlocking ? senderExecutor : executor;
+	}
+
+	/**
+	 * Register a periodic task. The interval is rounded up to a multiple of the alignment
+	 * boundary and the first run happens on the first boundary after the initial delay. Intervals
+	 * shorter than the alignment boundary (e.g., fast pings) are not rounded.
+	 *
+	 * @param task
+	 * @param initialDelay - Minimum delay (msec) before the first run.
+	 * @param interval - Interval (msec) between the runs.
+	 * @param isPausable - Whether the task should be slowed down in the power save mode.
+	 *
+	 * @return The handle for the task, which can be used to cancel it.
+	 */
+	public static PeriodicTask schedulePeriodic(Runnable task, long initialDelay,
+			long interval, boolean isPausable) {
+		return schedulePeriodic(task, initialDelay, interval, isPausable, false);
+	}
+
+	/**
+	 * Register a periodic task, like schedulePeriodic(task, initialDelay, interval, isPausable).
+	 * A blocking task, i.e. one that sends to the server or waits on a child process, runs on
+	 * the sender thread.
+	 *
+	 * @param task
+	 * @param initialDelay - Minimum delay (msec) before the first run.
+	 * @param interval - Interval (msec) between the runs.
+	 * @param isPausable - Whether the task should be slowed down in the power save mode.
+	 * @param isBlocking - Whether the task may block.
+	 *
+	 * @return The handle for the task, which can be used to cancel it.
+	 */
+	public static synchronized PeriodicTask schedulePeriodic(Runnable task, long initialDelay,
+			long interval, boolean isPausable, boolean isBlocking) {
+		long alignment = Constants.SCHEDULER_ALIGNMENT;
+		long alignedInterval = interval < alignment ? interval :
+			((interval + alignment - 1) / alignment) * alignment;
+
+		PeriodicTask periodicTask = new PeriodicTask(task, alignedInterval, isPausable, isBlocking);
+		periodicTasks.add(periodicTask);
+
+		if (isPowerSave && isPausable) {
+			periodicTask.schedulePowerSave();
+		} else {
+			periodicTask.schedule(initialDelay, alignedInterval);
+		}
+
+		return periodicTask;
+	}
+
+	/**
+	 * Run a task once after the input delay. One-shot tasks are not aligned and are
+	 * not cancelled by cancelAll().
+	 *
+	 * @param task
+	 * @param delay - Delay (msec) before the run.
+	 *
+	 * @return The future for the task, which can be used to cancel it.
+	 */
+	public static ScheduledFuture<?> scheduleOnce(Runnable task, long delay) {
+		return scheduleOnce(task, delay, false);
+	}
+
+	/**
+	 * Run a task once after the input delay, like scheduleOnce(task, delay). A blocking task
+	 * runs on the sender thread.
+	 *
+	 * @param task
+	 * @param delay - Delay (msec) before the run.
+	 * @param isBlocking - Whether the task may block.
+	 *
+	 * @return The future for the task, which can be used to cancel it.
+	 */
+	public static synchronized ScheduledFuture<?> scheduleOnce(Runnable task, long delay,
+			boolean isBlocking) {
+		return getExecutor(isBlocking).schedule(new TaskWrapper(task), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancel all the periodic tasks. A task that is currently running is allowed to complete.
+	 */
+	public static synchronized void cancelAll() {
+		for (int i = 0; i < periodicTasks.size(); i++) {
+			periodicTasks.get(i).cancelFuture();
+		}
+
+		periodicTasks.clear();
+		isPowerSave = false;
+
+		if (executor != null) {
+			executor.purge();
+			senderExecutor.purge();
+		}
+	}
+
+	/**
+	 * Turn the power save mode on or off. The pausable tasks are rescheduled accordingly. When
+	 * the power save mode ends, each pausable task is run once immediately to catch up.
+	 *
+	 * @param powerSave
+	 */
+	public static synchronized void setPowerSave(boolean powerSave) {
+		if (isPowerSave == powerSave) {
+			return;
+		}
+
+		isPowerSave = powerSave;
+
+		for (int i = 0; i < periodicTasks.size(); i++) {
+			PeriodicTask periodicTask = periodicTasks.get(i);
+
+			if (!periodicTask.isPausable) {
+				continue;
+			}
+
+			if (powerSave) {
+				periodicTask.schedulePowerSave();
+			} else {
+				periodicTask.schedule(0, periodicTask.interval);
+			}
+		}
+	}
+
+	/**
+	 * Remove a cancelled task from the list of periodic tasks.
+	 *
+	 * @param periodicTask
+	 */
+	private static synchronized void cancel(PeriodicTask periodicTask) {
+		periodicTask.cancelFuture();
+		periodicTasks.remove(periodicTask);
+	}
+
+	/**
+	 * Returns the delay (msec) to the first alignment boundary after the input delay.
+	 *
+	 * @param delay
+	 *
+	 * @return aligned delay
+	 */
+	private static long getAlignedDelay(long delay) {
+		long alignment = Constants.SCHEDULER_ALIGNMENT;
+		long elapsed = (System.nanoTime() - epochNanos) / 1000000L;
+
+		return ((elapsed + delay + alignment - 1) / alignment) * alignment - elapsed;
+	}
+
+	/**
+	 * A periodic task registered with the scheduler. The underlying future is replaced whenever
+	 * the task is rescheduled for the power save mode. All the state is guarded by the
+	 * InsightScheduler class lock, except the future, which is also read by the runs.
+	 */
+	public static class PeriodicTask implements Runnable {
+		private final TaskWrapper task;
+		private final long interval;
+		private final boolean isPausable;
+		private final boolean isBlocking;
+		private volatile ScheduledFuture<?> future = null;
+		private volatile long period = 0;
+
+		private PeriodicTask(Runnable task, long interval, boolean isPausable, boolean isBlocking) {
+			this.task = new TaskWrapper(task);
+			this.interval = interval;
+			this.isPausable = isPausable;
+			this.isBlocking = isBlocking;
+		}
+
+		/**
+		 * Run the task, unless this run starts a whole period late, e.g. because the thread
+		 * was held up by another task. The executor would otherwise fire the missed runs of
+		 * a fixed rate task back to back, off the alignment boundaries.
+		 */
+		public void run() {
+			ScheduledFuture<?> currFuture = future;
+
+			// While a run is in progress, the delay is to the time this run was due.
+			if (currFuture != null && period > 0
+					&& -currFuture.getDelay(TimeUnit.MILLISECONDS) >= period) {
+				Log.w(TAG, "Skipping a late run of a periodic task");
+				return;
+			}
+
+			task.run();
+		}
+
+		/**
+		 * Cancel the task. A run that is currently in progress is allowed to complete.
+		 */
+		public void cancel() {
+			InsightScheduler.cancel(this);
+		}
+
+		private void schedule(long initialDelay, long period) {
+			cancelFuture();
+			this.period = period;
+			future = getExecutor(isBlocking).scheduleAtFixedRate(this,
+					getAlignedDelay(initialDelay), period, TimeUnit.MILLISECONDS);
+		}
+
+		private void schedulePowerSave() {
+			if (Constants.POWER_SAVE_SLOWDOWN > 0) {
+				long slowInterval = interval * Constants.POWER_SAVE_SLOWDOWN;
+				schedule(slowInterval, slowInterval);
+			} else {
+				cancelFuture();
+			}
+		}
+
+		private void cancelFuture() {
+			try {
+				if (future != null) {
+					future.cancel(false);
+					future = null;
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "Exception while cancelling task: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Creates the named daemon threads of an executor.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		private int threadCount = 0;
+
+		public DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public synchronized Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name + "-" + (++threadCount));
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Accounts the work of each task in the self statistics. Also catches the exceptions as
+	 * an exception would otherwise suppress the subsequent runs of a periodic task.
+	 */
+	private static class TaskWrapper implements Runnable {
+		private final Runnable task;
+
+		public TaskWrapper(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			long startCpuTime = SelfStats.taskStarted();
+
+			try {
+				task.run();
+			} catch (Exception e) {
+				Log.e(TAG, "Exception in scheduled task: " + e.toString());
+			}
+
+			SelfStats.taskEnded(startCpuTime);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Counts the request and response body bytes of a URLConnection as one request, from open()
+ * until the response stream is closed (or end() is called, e.g. on an error path). The
+ * response headers mark the first byte. The bytes are counted as seen by the app, i.e.
+ * without the headers and after any transparent decompression.
+ *
+ * <pre>
+ * InstrumentedConnection connection = InstrumentedConnection.open(url);
+ * InputStream in = connection.getInputStream();
+ * // Read the response.
+ * in.close();
+ * </pre>
+ */
+public class InstrumentedConnection {
+	private final URLConnection connection;
+	private final RequestTrafficCounter counter;
+	private CountingInputStream inputStream = null;
+	private CountingOutputStream outputStream = null;
+
+	private InstrumentedConnection(URLConnection connection, RequestTrafficCounter counter) {
+		this.connection = connection;
+		this.counter = counter;
+	}
+
+	/**
+	 * Start a request and open a connection to the URL.
+	 *
+	 * @param url
+	 *
+	 * @throws IOException
+	 */
+	public static InstrumentedConnection open(URL url) throws IOException {
+		RequestTrafficCounter counter = new RequestTrafficCounter();
+
+		try {
+			return new InstrumentedConnection(url.openConnection(), counter);
+		} catch (IOException e) {
+			counter.end();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the connection, e.g. to set the request properties. Its streams should be
+	 * obtained from this object, so that they are counted.
+	 */
+	public URLConnection getConnection() {
+		return connection;
+	}
+
+	public RequestTrafficCounter getCounter() {
+		return counter;
+	}
+
+	/**
+	 * Returns the counted request body stream.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			try {
+				outputStream = new CountingOutputStream(connection.getOutputStream(), counter);
+			} catch (IOException e) {
+				counter.end();
+				throw e;
+			}
+		}
+
+		return outputStream;
+	}
+
+	/**
+	 * Returns the counted response body stream. Closing it ends the request.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized InputStream getInputStream() throws IOException {
+		if (inputStream == null) {
+			try {
+				InputStream in = connection.getInputStream();
+				counter.markFirstByte();
+				inputStream = new CountingInputStream(in, counter, true);
+			} catch (IOException e) {
+				// The error response, if any, still arrived.
+				if (connection instanceof HttpURLConnection
+						&& ((HttpURLConnection) connection).getErrorStream() != null) {
+					counter.markFirstByte();
+				}
+
+				counter.end();
+				throw e;
+			}
+		}
+
+		return inputStream;
+	}
+
+	/**
+	 * End the request, if not already ended by closing the response stream.
+	 */
+	public void end() {
+		counter.end();
+	}
+}
@@ -0,0 +1,94 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A drop-in Socket counting the bytes sent and received on its streams as one request, from
+ * the creation of the socket to its close. The time to first byte includes the connection
+ * setup when the socket is connected by the constructor.
+ */
+public class InstrumentedSocket extends Socket {
+	private final RequestTrafficCounter counter = new RequestTrafficCounter();
+	private CountingInputStream inputStream = null;
+	private CountingOutputStream outputStream = null;
+
+	/**
+	 * Creates an unconnected socket.
+	 */
+	public InstrumentedSocket() {
+		super();
+	}
+
+	public InstrumentedSocket(String host, int port) throws IOException {
+		super();
+		connectOrEnd(new InetSocketAddress(host, port));
+	}
+
+	public InstrumentedSocket(InetAddress address, int port) throws IOException {
+		super();
+		connectOrEnd(new InetSocketAddress(address, port));
+	}
+
+	private void connectOrEnd(InetSocketAddress address) throws IOException {
+		try {
+			connect(address);
+		} catch (IOException e) {
+			counter.end();
+			throw e;
+		}
+	}
+
+	public RequestTrafficCounter getCounter() {
+		return counter;
+	}
+
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		if (inputStream == null) {
+			inputStream = new CountingInputStream(super.getInputStream(), counter, false);
+		}
+
+		return inputStream;
+	}
+
+	@Override
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			outputStream = new CountingOutputStream(super.getOutputStream(), counter);
+		}
+
+		return outputStream;
+	}
+
+	/**
+	 * Close the socket and end the request.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			counter.end();
+		}
+	}
+}
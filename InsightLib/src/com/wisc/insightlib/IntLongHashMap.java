@@ -0,0 +1,180 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive int keys to primitive long values. Uses open addressing with linear
+ * probing, so that neither the lookups nor the updates box the keys or the values or allocate
+ * entry objects. Not thread safe.
+ *
+ * The entries are iterated using the slot methods:
+ *
+ *     for (int slot = 0; slot < map.capacity(); slot++) {
+ *         if (map.isUsed(slot)) {
+ *             ... map.keyAt(slot) ... map.valueAt(slot) ...
+ *         }
+ *     }
+ */
+public class IntLongHashMap {
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int[] keys;
+	private long[] values;
+	private boolean[] used;
+	private int mask;
+	private int size;
+
+	public IntLongHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize - Number of entries the map can hold without resizing.
+	 */
+	public IntLongHashMap(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+
+		while (capacity * 3 < expectedSize * 4) {
+			capacity <<= 1;
+		}
+
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new long[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+	}
+
+	static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns the slot holding the key, or -(slot + 1) for the free slot where it would be inserted.
+	 */
+	private int findSlot(int key) {
+		int slot = mix(key) & mask;
+
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return -(slot + 1);
+	}
+
+	public long get(int key, long defaultValue) {
+		int slot = findSlot(key);
+		return slot >= 0 ? values[slot] : defaultValue;
+	}
+
+	public boolean containsKey(int key) {
+		return findSlot(key) >= 0;
+	}
+
+	public void put(int key, long value) {
+		int slot = findSlot(key);
+
+		if (slot >= 0) {
+			values[slot] = value;
+		} else {
+			insert(-(slot + 1), key, value);
+		}
+	}
+
+	/**
+	 * Add delta to the value of the key. A missing key is treated as 0.
+	 *
+	 * @param key
+	 * @param delta
+	 *
+	 * @return the new value.
+	 */
+	public long add(int key, long delta) {
+		int slot = findSlot(key);
+
+		if (slot >= 0) {
+			return values[slot] += delta;
+		}
+
+		insert(-(slot + 1), key, delta);
+		return delta;
+	}
+
+	private void insert(int slot, int key, long value) {
+		keys[slot] = key;
+		values[slot] = value;
+		used[slot] = true;
+
+		if (++size * 4 > keys.length * 3) {
+			resize();
+		}
+	}
+
+	private void resize() {
+		int[] oldKeys = keys;
+		long[] oldValues = values;
+		boolean[] oldUsed = used;
+
+		allocate(oldKeys.length * 2);
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int slot = -(findSlot(oldKeys[i]) + 1);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				used[slot] = true;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all the entries. The capacity is retained.
+	 */
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	public int capacity() {
+		return keys.length;
+	}
+
+	public boolean isUsed(int slot) {
+		return used[slot];
+	}
+
+	public int keyAt(int slot) {
+		return keys[slot];
+	}
+
+	public long valueAt(int slot) {
+		return values[slot];
+	}
+}
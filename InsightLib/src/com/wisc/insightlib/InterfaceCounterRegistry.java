@@ -0,0 +1,242 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * Keeps the byte and packet counter files of the network interfaces under /sys/class/net
+ * (except the loopback) open, and reads all of them into one array. The interfaces are
+ * discovered once and again after invalidate(), called on connectivity changes, or after a
+ * counter file went away, so reading the counters doesn't list the directory or build the
+ * paths, and allocates nothing.
+ *
+ * The counters are read with one readAll() per sample, and the values of that sample are then
+ * taken with getCounter(), getTotal() and getMobile(). The methods are synchronized on the
+ * registry; a caller taking several values after readAll() should hold the lock, so that the
+ * counters aren't read again or the interfaces refreshed in between.
+ */
+public class InterfaceCounterRegistry {
+	private static final String TAG = "InterfaceCounterRegistry";
+	private static final String NET_DIR = "/sys/class/net";
+
+	/**
+	 * The counters of each interface, in the order of the COUNTER_NAMES files.
+	 */
+	public static final int RX_BYTES = 0;
+	public static final int TX_BYTES = 1;
+	public static final int RX_PACKETS = 2;
+	public static final int TX_PACKETS = 3;
+	public static final int NUM_COUNTERS = 4;
+	private static final String[] COUNTER_NAMES = {"rx_bytes", "tx_bytes", "rx_packets", "tx_packets"};
+
+	/**
+	 * The value of a counter that couldn't be read.
+	 */
+	public static final long UNREADABLE = -1;
+
+	/**
+	 * The mobile interfaces, in the order of preference.
+	 */
+	private static final String[] MOBILE_INTERFACES = {"rmnet0", "ppp0"};
+
+	private String[] names = new String[0];
+	private CounterFile[] files = new CounterFile[0];
+	private long[] counters = new long[0];
+	private int mobileInterface = -1;
+	private volatile boolean isStale = true;
+
+	/**
+	 * Rediscover the interfaces on the next read.
+	 */
+	public void invalidate() {
+		isStale = true;
+	}
+
+	/**
+	 * List the interfaces, keep the files of the existing ones open, open the files of the new
+	 * ones and close the files of the ones that went away.
+	 */
+	private void refresh() {
+		isStale = false;
+		String[] list = new File(NET_DIR).list();
+
+		if (list == null) {
+			list = new String[0];
+		}
+
+		String[] newNames = new String[list.length];
+		CounterFile[] newFiles = new CounterFile[list.length * NUM_COUNTERS];
+		int numInterfaces = 0;
+
+		for (String name : list) {
+			// Don't use statistics from the localhost interface.
+			if (name.equals("lo")) {
+				continue;
+			}
+
+			int base = numInterfaces * NUM_COUNTERS;
+			int oldIndex = indexOf(names, names.length, name);
+			boolean isOpen = true;
+
+			for (int c = 0; c < NUM_COUNTERS; c++) {
+				if (oldIndex >= 0) {
+					newFiles[base + c] = files[oldIndex * NUM_COUNTERS + c];
+					files[oldIndex * NUM_COUNTERS + c] = null;
+				} else {
+					newFiles[base + c] = new CounterFile(NET_DIR + File.separator + name
+							+ File.separator + "statistics" + File.separator + COUNTER_NAMES[c]);
+				}
+
+				isOpen &= newFiles[base + c].open();
+			}
+
+			if (isOpen) {
+				newNames[numInterfaces++] = name;
+			} else {
+				Log.w(TAG, "Can't open the counters of " + name);
+
+				for (int c = 0; c < NUM_COUNTERS; c++) {
+					newFiles[base + c].close();
+					newFiles[base + c] = null;
+				}
+			}
+		}
+
+		// Close the files of the interfaces that went away.
+		for (int i = 0; i < files.length; i++) {
+			if (files[i] != null) {
+				files[i].close();
+			}
+		}
+
+		names = new String[numInterfaces];
+		System.arraycopy(newNames, 0, names, 0, numInterfaces);
+		files = new CounterFile[numInterfaces * NUM_COUNTERS];
+		System.arraycopy(newFiles, 0, files, 0, files.length);
+		counters = new long[files.length];
+
+		mobileInterface = -1;
+
+		for (int i = 0; i < MOBILE_INTERFACES.length && mobileInterface < 0; i++) {
+			mobileInterface = indexOf(names, numInterfaces, MOBILE_INTERFACES[i]);
+		}
+	}
+
+	private static int indexOf(String[] names, int size, String name) {
+		for (int i = 0; i < size; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Read all the counters. A counter that can't be read is UNREADABLE, and the interfaces
+	 * are rediscovered on the next read.
+	 */
+	public synchronized void readAll() {
+		if (isStale) {
+			refresh();
+		}
+
+		for (int i = 0; i < files.length; i++) {
+			try {
+				counters[i] = files[i].read();
+			} catch (IOException e) {
+				counters[i] = UNREADABLE;
+				isStale = true;
+			}
+		}
+	}
+
+	public synchronized int getNumInterfaces() {
+		return names.length;
+	}
+
+	public synchronized String getInterfaceName(int index) {
+		return names[index];
+	}
+
+	/**
+	 * Returns the index of the mobile interface (rmnet0, or else ppp0), or -1 if there is none.
+	 */
+	public synchronized int getMobileInterface() {
+		return mobileInterface;
+	}
+
+	/**
+	 * Returns the counter of the interface as of the last readAll(), or UNREADABLE.
+	 *
+	 * @param index - Index of the interface, below getNumInterfaces().
+	 * @param counter - One of RX_BYTES, TX_BYTES, RX_PACKETS and TX_PACKETS.
+	 */
+	public synchronized long getCounter(int index, int counter) {
+		return counters[index * NUM_COUNTERS + counter];
+	}
+
+	/**
+	 * Returns the sum of the counter over the interfaces, as of the last readAll(), leaving
+	 * out the interfaces whose counter couldn't be read.
+	 *
+	 * @param counter - One of RX_BYTES, TX_BYTES, RX_PACKETS and TX_PACKETS.
+	 */
+	public synchronized long getTotal(int counter) {
+		long total = 0;
+
+		for (int i = counter; i < counters.length; i += NUM_COUNTERS) {
+			if (counters[i] != UNREADABLE) {
+				total += counters[i];
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 * Returns the counter of the mobile interface (rmnet0, or else ppp0), as of the last
+	 * readAll(), or 0 if there is none or it couldn't be read.
+	 *
+	 * @param counter - One of RX_BYTES, TX_BYTES, RX_PACKETS and TX_PACKETS.
+	 */
+	public synchronized long getMobile(int counter) {
+		if (mobileInterface < 0) {
+			return 0;
+		}
+
+		return Math.max(0, counters[mobileInterface * NUM_COUNTERS + counter]);
+	}
+
+	/**
+	 * Close all the counter files. The interfaces are rediscovered on the next read.
+	 */
+	public synchronized void close() {
+		for (int i = 0; i < files.length; i++) {
+			files[i].close();
+		}
+
+		names = new String[0];
+		files = new CounterFile[0];
+		counters = new long[0];
+		mobileInterface = -1;
+		isStale = true;
+	}
+}
@@ -41,7 +41,6 @@ import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 /**
@@ -532,7 +531,13 @@ class LocationUpdateManager implements Runnable {
 	/**
 	 * Get status of location updates.
 	 */
-	private boolean isRunning = false;
+	private volatile boolean isRunning = false;
+	
+	/**
+	 * The periodic location update task and the handler of the looper thread processing the updates.
+	 */
+	private InsightScheduler.PeriodicTask locationTask = null;
+	private Handler handler = null;
 
 	public LocationUpdateManager(Context mContext,
 			MainStatsManager resourceConsumptionStats) {
@@ -540,60 +545,70 @@ class LocationUpdateManager implements Runnable {
 		this.resourceConsumptionStats = resourceConsumptionStats;
 	}
 
+	/**
+	 * Start the periodic location updates. Must be called on a looper thread, the location
+	 * updates are received and processed on that thread.
+	 */
+	public void startLocationUpdates() {
+		handler = new Handler();
+		isRunning = true;
+		
+		locationTask = InsightScheduler.schedulePeriodic(this,
+				Constants.INIT_LOCATION_SLEEP_TIME, Constants.LOC_UPDATE_FREQUENCY, true);
+	}
+
+	/**
+	 * Run periodically by the InsightScheduler. Hands over the location update to the looper thread.
+	 */
 	public void run() {
+		// Skip the location updates if Insight exceeded its overhead budget.
+		if (!isRunning || SelfStats.isThrottled()) {
+			return;
+		}
 		
-		try {	
-			
-			isRunning = true;
-			Thread.sleep(Constants.INIT_LOCATION_SLEEP_TIME);
-			
+		handler.post(locationUpdate);
+	}
+	
+	/**
+	 * Obtains the current location and sends it to the server.
+	 */
+	private final Runnable locationUpdate = new Runnable() {
+		public void run() {
+			// The wakeup was counted by the scheduler task that posted the update.
+			long startCpuTime = SelfStats.handoverStarted();
+
 			// Initialize the location state object.
-			locState = new LocationState(mContext);
-			
-			while (isRunning) {
-				new Thread(new Runnable() {
-
-					public void run() {
-						Looper.prepare();
-						final Handler mHandler = new Handler();
-						mHandler.post(new Runnable() {
-							public void run() {
-
-								if (locState != null) {
-
-									if (locState.getLoc() == null) {
-										locState.findBestEffortLocation();
-									}
-
-									if (locState.getLoc() != null) {
-
-										if (!sendLocationData()) {
-											resetLocationUpdates(" sendLocationData is false");
-
-											//Log.w(TAG, "Warning.. Couldn't send location " +
-											//"data. Stopped Location updates.");
-										} else {
-											firstLocationUpdateSent = true;
-										}
-									}
-
-									locState.stopListening(TAG + ".getLocationUpdates");
-								}
-								
-								locState.initLocationState();
-								//locState = new LocationState(mContext);
-							}
-						});
-						Looper.loop();
+			if (locState == null) {
+				locState = new LocationState(mContext);
+			}
+
+			try {
+				if (locState.getLoc() == null) {
+					locState.findBestEffortLocation();
+				}
+
+				if (locState.getLoc() != null) {
+
+					if (!sendLocationData()) {
+						resetLocationUpdates(" sendLocationData is false");
+
+						//Log.w(TAG, "Warning.. Couldn't send location " +
+						//"data. Stopped Location updates.");
+					} else {
+						firstLocationUpdateSent = true;
 					}
-				}).start();
+				}
 
-				Thread.sleep(Constants.LOC_UPDATE_FREQUENCY); // * 1 / 4);
+				locState.stopListening(TAG + ".getLocationUpdates");
+				locState.initLocationState();
+				//locState = new LocationState(mContext);
+			} catch (Exception e) {
+				Log.e(TAG, "getLocationUpdates : " + e);
 			}
-		} catch (Exception e) {
-			Log.e(TAG, "getLocationUpdates : " + e);
+
+			SelfStats.taskEnded(startCpuTime);
 		}
-	}
+	};
 	
 	/**
 	 * Stop listening to the location updates.
@@ -603,6 +618,15 @@ class LocationUpdateManager implements Runnable {
 	public void resetLocationUpdates(String message) {
 		//Log.e(TAG, "resetLocationUpdates called due to: " + info);
 		isRunning = false;
+		
+		try {
+			if (locationTask != null) {
+				locationTask.cancel();
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while cancelling location task: " +
+					e.toString());
+		}
 
 		try {
 			if (locState != null) {
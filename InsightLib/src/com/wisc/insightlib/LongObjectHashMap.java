@@ -0,0 +1,201 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive long keys to objects. Uses open addressing with linear probing, so
+ * that the keys are not boxed and no entry objects are allocated. The removals shift the
+ * following entries back instead of leaving tombstones. Not thread safe. The entries are
+ * iterated the same way as in IntLongHashMap.
+ *
+ * @param <V> - Type of the values.
+ */
+public class LongObjectHashMap<V> {
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private boolean[] used;
+	private int mask;
+	private int size;
+
+	public LongObjectHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize - Number of entries the map can hold without resizing.
+	 */
+	public LongObjectHashMap(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+
+		while (capacity * 3 < expectedSize * 4) {
+			capacity <<= 1;
+		}
+
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int mix(long key) {
+		return IntLongHashMap.mix((int) (key ^ (key >>> 32)));
+	}
+
+	/**
+	 * Returns the slot holding the key, or -(slot + 1) for the free slot where it would be inserted.
+	 */
+	private int findSlot(long key) {
+		int slot = mix(key) & mask;
+
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return -(slot + 1);
+	}
+
+	/**
+	 * @param key
+	 *
+	 * @return the value of the key, or null if the key is not present.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int slot = findSlot(key);
+		return slot >= 0 ? (V) values[slot] : null;
+	}
+
+	public boolean containsKey(long key) {
+		return findSlot(key) >= 0;
+	}
+
+	public void put(long key, V value) {
+		int slot = findSlot(key);
+
+		if (slot >= 0) {
+			values[slot] = value;
+			return;
+		}
+
+		slot = -(slot + 1);
+		keys[slot] = key;
+		values[slot] = value;
+		used[slot] = true;
+
+		if (++size * 4 > keys.length * 3) {
+			resize();
+		}
+	}
+
+	/**
+	 * Remove the key from the map.
+	 *
+	 * @param key
+	 *
+	 * @return the removed value, or null if the key was not present.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int slot = findSlot(key);
+
+		if (slot < 0) {
+			return null;
+		}
+
+		V value = (V) values[slot];
+
+		// Shift back the entries of the probe sequence that can no longer be reached through the gap.
+		int gap = slot;
+		int next = (gap + 1) & mask;
+
+		while (used[next]) {
+			int ideal = mix(keys[next]) & mask;
+
+			if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				gap = next;
+			}
+
+			next = (next + 1) & mask;
+		}
+
+		used[gap] = false;
+		values[gap] = null;
+		size--;
+
+		return value;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		boolean[] oldUsed = used;
+
+		allocate(oldKeys.length * 2);
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int slot = -(findSlot(oldKeys[i]) + 1);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				used[slot] = true;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all the entries. The capacity is retained.
+	 */
+	public void clear() {
+		Arrays.fill(used, false);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	public int capacity() {
+		return keys.length;
+	}
+
+	public boolean isUsed(int slot) {
+		return used[slot];
+	}
+
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot) {
+		return (V) values[slot];
+	}
+}
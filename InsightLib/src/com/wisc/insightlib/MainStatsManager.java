@@ -42,6 +42,7 @@ import android.location.LocationManager;
 import android.media.AudioManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -65,6 +66,20 @@ public class MainStatsManager implements Runnable{
 	// Message related constants
 	private static final String MEESAGE_PREAMBLE = "re08h4089y";
 	private static final String MESSAGE_POSTAMBLE = "dsf9u0932j";
+	
+	/**
+	 * The outbound message buffer, reused for all the messages. Guarded by this.
+	 */
+	private final StatsWriter messageWriter = new StatsWriter();
+	
+	/**
+	 * The time of the last attempt to reconnect to the server (elapsed realtime) and the number
+	 * of failed attempts in a row. Guarded by reconnectLock, which is not taken by the sends,
+	 * so that a connect to an unreachable server doesn't hold them up.
+	 */
+	private final Object reconnectLock = new Object();
+	private long lastReconnectTime = 0;
+	private int reconnectFailures = 0;
 
 	private static int READ_BUFFER_SIZE = 100; 
 
@@ -77,6 +92,8 @@ public class MainStatsManager implements Runnable{
 	private static final int LOCATION_INFO = 8;
 	private static final int APPUID_INFO = 11;
 	private static final int EVENT_UPDATE_INFO = 12;
+	private static final int SELF_STATS_INFO = 13;
+	private static final int BATTERY_SUMMARY_INFO = 14;
 
 	// Application variables
 	private Context context;
@@ -87,18 +104,28 @@ public class MainStatsManager implements Runnable{
 
 	// Measure the resource usage on the device
 	//private Timer resourceInfoGatheringTimer;
-	private Thread resourceThread;
+	private InsightScheduler.PeriodicTask resourceTask;
 
 	// Monitor the battery status
 	private ParseBatteryStats batteryReceiver;
+	
+	// Estimate the battery drain rate and report it periodically
+	private final BatteryDrainEstimator batteryEstimator = new BatteryDrainEstimator();
+	private InsightScheduler.PeriodicTask batterySummaryTask;
 
 	// Monitor the screen status
 	private ScreenReceiver screenReceiver;
+	
+	// Monitor the connectivity changes
+	private ConnectivityReceiver connectivityReceiver;
 
 	// Maintaining previous state
 	private long prev_idle = -1;
 	private long prev_cpu = -1;
 
+	// Samples the PSS/USS, heap and GC statistics of the application process
+	private MemoryStats memoryStats = new MemoryStats();
+
 	// Connection variables
 	private InetAddress serverAddr;
 	private Socket tcpSocket;
@@ -128,6 +155,19 @@ public class MainStatsManager implements Runnable{
 	 * Start the main thread.
 	 */
 	public void run() {
+		long startCpuTime = SelfStats.taskStarted();
+		
+		try {
+			initStatsCollection();
+		} finally {
+			SelfStats.taskEnded(startCpuTime);
+		}
+	}
+	
+	/**
+	 * Connect to the server, read the configuration and start the resource measurements.
+	 */
+	private void initStatsCollection() {
 		Random randomGenerator = new Random();
 		
 		int resourceMeasurementInterval = Constants.RESOURCE_INTERVAL;
@@ -181,6 +221,13 @@ public class MainStatsManager implements Runnable{
 
 			receiveProb = 
 				Double.parseDouble(json.get("measurmentProbability").toString());
+			
+			// Optional per event sampling rates, e.g. "eventSamplingRates": {"1001": 0.1}.
+			Object samplingRates = json.get("eventSamplingRates");
+			
+			if (samplingRates instanceof JSONObject) {
+				InsightLib.setEventSamplingRates(parseSamplingRates((JSONObject) samplingRates));
+			}
 			//Log.i(TAG, "Resource measurement interval set to " + 
 			//		resourceMeasurementInterval + " milliseconds");
 
@@ -223,6 +270,14 @@ public class MainStatsManager implements Runnable{
 			// to randomly collect statistics from only a subset of client devices.
 			if (randomProb <= receiveProb) { 
 				initBroadcastReceivers();
+				
+				if (this.sessionRunning) {
+					batterySummaryTask = InsightScheduler.schedulePeriodic(new Runnable() {
+						public void run() {
+							sendBatterySummaryMessage();
+						}
+					}, Constants.BATTERY_SUMMARY_INTERVAL, Constants.BATTERY_SUMMARY_INTERVAL, true, true);
+				}
 			} else {
 				//Log.w(TAG, "Skipping initBroadcastReceivers");
 			}
@@ -256,12 +311,12 @@ public class MainStatsManager implements Runnable{
 				*/
 			
 				if (randomProb <= receiveProb) {
-					resourceThread = new Thread(new ResourceThread(resourceMeasurementInterval), 
-						"ResourceStats");
-					resourceThread.setDaemon(true);
-					resourceThread.start();
+					if (this.sessionRunning) {
+						resourceTask = InsightScheduler.schedulePeriodic(new ResourceTask(),
+								Constants.INIT_SLEEP_TIME, resourceMeasurementInterval, true, true);
+					}
 				} else {
-					Log.w(TAG, "Skipping resourceThread");
+					Log.w(TAG, "Skipping resourceTask");
 				}
 			}
 		} catch (Exception e) {
@@ -269,6 +324,29 @@ public class MainStatsManager implements Runnable{
 		}
 	}
 
+	/**
+	 * Parses the per event sampling rates received in the configuration. The invalid
+	 * entries are skipped.
+	 * 
+	 * @param samplingRates - JSON object mapping the eventIDs to their sampling rates.
+	 * 
+	 * @return map from the eventID to its sampling rate.
+	 */
+	private IntDoubleHashMap parseSamplingRates(JSONObject samplingRates) {
+		IntDoubleHashMap rates = new IntDoubleHashMap(samplingRates.size());
+		
+		for (Object key : samplingRates.keySet()) {
+			try {
+				rates.put(Integer.parseInt(key.toString()),
+						Double.parseDouble(samplingRates.get(key).toString()));
+			} catch (Exception e) {
+				Log.e(TAG, "Invalid sampling rate for event " + key + ": " + e.toString());
+			}
+		}
+		
+		return rates;
+	}
+	
 	/**
 	 * Initialize the broadcast receiver for receiving the battery related statistics.
 	 */
@@ -281,6 +359,10 @@ public class MainStatsManager implements Runnable{
 		IntentFilter filterScreen = new IntentFilter(Intent.ACTION_SCREEN_ON);
 		filterScreen.addAction(Intent.ACTION_SCREEN_OFF);
 		this.context.registerReceiver(screenReceiver, filterScreen);
+		
+		connectivityReceiver = new ConnectivityReceiver();
+		IntentFilter filterConnectivity = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+		this.context.registerReceiver(connectivityReceiver, filterConnectivity);
 	}
 	
 	/**
@@ -305,27 +387,86 @@ public class MainStatsManager implements Runnable{
 	 * @return 0 on success, -1 on failure
 	 */
 	private int createTCP(InetAddress serverAddr) {
+		tcpSocket = connectTCP();
+		
+		return tcpSocket == null ? -1 : 0;
+	}
+	
+	/**
+	 * Opens a new TCP connection to the Insight server.
+	 * 
+	 * @return the connected socket, null on failure.
+	 */
+	private Socket connectTCP() {
 		try	{
 			//Log.v(TAG +": createTCP", "Opening a socket");
 
-			tcpSocket = new Socket();
-			if (tcpSocket == null) {
-				Log.e(TAG + ": createTCP", "tcpSocket == null");
-				return -1;
-			}
+			Socket socket = new Socket();
 
 			// timeout of CONNECTION_TIMEOUT secs.
-			tcpSocket.connect(new InetSocketAddress(InetAddress.getByName(InsightLib.getServerHostname()),
+			socket.connect(new InetSocketAddress(InetAddress.getByName(InsightLib.getServerHostname()),
 					Constants.SERVER_PORT_RESOURCE), Constants.SOCKET_CONNECT_TIMEOUT);
 			// make the read blocking indefinitely
-			tcpSocket.setSoTimeout(0);
-
+			socket.setSoTimeout(0);
+			
+			return socket;
 		} catch (IOException e)	{
 			Log.e(TAG + ": createTCP", "Couldn't get I/O for the TCP connection to: " + InsightLib.getServerHostname());
-			return -1;
+			return null;
+		}
+	}
+	
+	/**
+	 * Reopen the TCP connection to the server after a failed send. Every message carries the
+	 * device and session IDs, so the session carries on over the new connection. The attempts
+	 * are spaced Constants.RECONNECT_INTERVAL apart, doubled after each failed attempt; after
+	 * Constants.MAX_RECONNECT_FAILURES failed attempts in a row, the server is taken to be
+	 * unreachable and the stats collection is stopped. The connect is done holding only the
+	 * reconnectLock, and the new socket is then swapped in.
+	 * 
+	 * @return true if reconnected.
+	 */
+	private boolean reconnect() {
+		synchronized (reconnectLock) {
+			long now = SystemClock.elapsedRealtime();
+			
+			if (!this.sessionRunning || serverAddr == null
+					|| now - lastReconnectTime < ((long) Constants.RECONNECT_INTERVAL << reconnectFailures)) {
+				return false;
+			}
+			
+			lastReconnectTime = now;
+			
+			Log.i(TAG, "Reconnecting to the server..");
+			Socket socket = connectTCP();
+			
+			if (socket == null) {
+				if (++reconnectFailures >= Constants.MAX_RECONNECT_FAILURES) {
+					Log.e(TAG, "Server unreachable after " + reconnectFailures
+							+ " attempts. Stopping stats collection.");
+					stopStatsCollection("reconnect");
+					InsightLib.onServerUnreachable();
+				}
+				
+				return false;
+			}
+			
+			reconnectFailures = 0;
+			
+			synchronized (this) {
+				try	{
+					if (tcpSocket != null) {
+						tcpSocket.close();
+					}
+				} catch (IOException e)	{
+					Log.e(TAG + ": reconnect", "close failed");
+				}
+				
+				tcpSocket = socket;
+			}
+			
+			return true;
 		}
-
-		return 0;
 	}
 	
 	/**
@@ -339,7 +480,8 @@ public class MainStatsManager implements Runnable{
 		try	{
 			byte[] readBuffer = new byte[READ_BUFFER_SIZE];
 
-			tcpSocket.getInputStream().read(readBuffer);
+			int readCount = tcpSocket.getInputStream().read(readBuffer);
+			SelfStats.packetReceived(readCount);
 			//Log.v(TAG, "readDataFromServer: readCount: " + 
 			//		readCount + ". Received: " + readString);
 
@@ -358,7 +500,7 @@ public class MainStatsManager implements Runnable{
 	 * 
 	 * @param message
 	 */
-	private synchronized boolean sendDataBytesToServer(byte[] message) {
+	private synchronized boolean sendDataBytesToServer(StatsWriter message) {
 		boolean returnStatus = false;
 		
 		if (!this.sessionRunning) {
@@ -369,7 +511,8 @@ public class MainStatsManager implements Runnable{
 			sendMessageLock.lock();
 
 			//Log.i(TAG + ": sendDataBytesToServer", "Sending Data to server....");
-			tcpSocket.getOutputStream().write(message);
+			message.writeTo(tcpSocket.getOutputStream());
+			SelfStats.packetSent(message.length());
 			//Log.i(TAG + ": sendDataBytesToServer", "Data to server sent....");
 			
 			returnStatus = true;
@@ -393,7 +536,8 @@ public class MainStatsManager implements Runnable{
 
 	/**
 	 * Generates a header for the input message and sends it to the server. Returns true if
-	 * the send message operation is successful, else returns false.
+	 * the send message operation is successful, else returns false. A failed send is retried
+	 * once over a new connection; if it still fails, the caller may retry later.
 	 *  
 	 * @param message
 	 * @param messageType
@@ -402,29 +546,90 @@ public class MainStatsManager implements Runnable{
 	 * 
 	 * @return success
 	 */
-	private boolean sendMessageToServer(String message, int messageType,
+	private boolean sendMessageToServer(CharSequence message, int messageType,
 			boolean isSeqPresent, int sequenceNumber) {
-		String messageString;
-
-		if (isSeqPresent) {
-			messageString = MEESAGE_PREAMBLE + JOIN_DELIM + messageType + JOIN_DELIM +
-			this.deviceID + JOIN_DELIM + Constants.APPLICATION_ID + JOIN_DELIM + sessionID +
-			JOIN_DELIM + this.sequenceNum + JOIN_DELIM + message + JOIN_DELIM + MESSAGE_POSTAMBLE;
-		} else {
-			messageString = MEESAGE_PREAMBLE + JOIN_DELIM + messageType + JOIN_DELIM +
-			this.deviceID + JOIN_DELIM + Constants.APPLICATION_ID + JOIN_DELIM + sessionID +
-			JOIN_DELIM + message + JOIN_DELIM + MESSAGE_POSTAMBLE;
+		//Log.i(TAG, "sendMessageToServer: " + message);
+		boolean isSent = writeAndSendMessage(message, messageType, isSeqPresent);
+		if (!isSent) {
+			Log.w(TAG, "sendMessageToServer: Couldn't send message of type: " + messageType);
 		}
 
-		//Log.i(TAG, "sendMessageToServer: " + messageString);
-		boolean isSent = sendDataBytesToServer(messageString.getBytes());
+		return isSent;
+	}
+	
+	/**
+	 * Generates a header for the message already written into the input writer and sends it
+	 * to the server, like sendMessageToServer().
+	 * 
+	 * @param message
+	 * @param messageType
+	 * 
+	 * @return success
+	 */
+	private boolean sendMessageToServer(StatsWriter message, int messageType) {
+		boolean isSent = writeAndSendMessage(message, messageType);
 		if (!isSent) {
-			stopStatsCollection("sendMessageToServer: Stats collection stopped while" +
-					" sending message: " + message);
+			Log.w(TAG, "sendMessageToServer: Couldn't send message of type: " + messageType);
 		}
 
 		return isSent;
 	}
+	
+	/**
+	 * Write the message with its header fields into the messageWriter and send it. The
+	 * message is encoded straight into the reused buffer, without building the full message
+	 * string and copying it with getBytes(). A failed send is retried once after reconnecting;
+	 * the reconnect is done without holding this, so that the other senders aren't held up.
+	 * 
+	 * @return True on success, False otherwise.
+	 */
+	private boolean writeAndSendMessage(CharSequence message, int messageType,
+			boolean isSeqPresent) {
+		return writeAndSendOnce(message, messageType, isSeqPresent)
+			|| (reconnect() && writeAndSendOnce(message, messageType, isSeqPresent));
+	}
+	
+	private synchronized boolean writeAndSendOnce(CharSequence message, int messageType,
+			boolean isSeqPresent) {
+		writeHeader(messageType, isSeqPresent);
+		messageWriter.append(message).append(JOIN_DELIM).append(MESSAGE_POSTAMBLE);
+
+		return sendDataBytesToServer(messageWriter);
+	}
+	
+	/**
+	 * Write the header fields and the message already written into the input writer into the
+	 * messageWriter and send it.
+	 * 
+	 * @return True on success, False otherwise.
+	 */
+	private boolean writeAndSendMessage(StatsWriter message, int messageType) {
+		return writeAndSendOnce(message, messageType)
+			|| (reconnect() && writeAndSendOnce(message, messageType));
+	}
+	
+	private synchronized boolean writeAndSendOnce(StatsWriter message, int messageType) {
+		writeHeader(messageType, false);
+		messageWriter.append(message).append(JOIN_DELIM).append(MESSAGE_POSTAMBLE);
+
+		return sendDataBytesToServer(messageWriter);
+	}
+	
+	/**
+	 * Start a new message in the messageWriter with the header fields.
+	 */
+	private void writeHeader(int messageType, boolean isSeqPresent) {
+		messageWriter.reset();
+		messageWriter.append(MEESAGE_PREAMBLE).append(JOIN_DELIM)
+			.append(messageType).append(JOIN_DELIM)
+			.append(this.deviceID).append(JOIN_DELIM)
+			.append(Constants.APPLICATION_ID).append(JOIN_DELIM)
+			.append(sessionID).append(JOIN_DELIM);
+
+		if (isSeqPresent) {
+			messageWriter.append(this.sequenceNum).append(JOIN_DELIM);
+		}
+	}
 
 	/**
 	 * Send the end of session message to the server.
@@ -449,12 +654,12 @@ public class MainStatsManager implements Runnable{
 	 * 
 	 * @return systemInfoString
 	 */
-	public boolean sendEndSessionMessage(String message) {
+	public boolean sendEndSessionMessage(StatsWriter message) {
 		try {
 			//String msgString = MEESAGE_PREAMBLE + JOIN_DELIM + REMOVE_SESSION + JOIN_DELIM +
 			//	this.deviceID + JOIN_DELIM + sessionID + JOIN_DELIM + message;
 			//Log.i(TAG, "SendEndSessionMessage: " + message);
-			return sendMessageToServer(message, REMOVE_SESSION, false, -1);
+			return sendMessageToServer(message, REMOVE_SESSION);
 		} catch (Exception e) {
 			Log.e(TAG, "Error while sending endSession message: " + e.getMessage());
 		}
@@ -482,9 +687,9 @@ public class MainStatsManager implements Runnable{
 	 * 
 	 * @return systemInfoString
 	 */
-	public boolean sendCurrentStatsMessage(String message) {
+	public boolean sendCurrentStatsMessage(StatsWriter message) {
 		try {
-			return sendMessageToServer(message, EVENT_UPDATE_INFO, false, -1);
+			return sendMessageToServer(message, EVENT_UPDATE_INFO);
 		} catch (Exception e) {
 			Log.e(TAG, "Error while sending current stats message: " + e.getMessage());
 		}
@@ -492,6 +697,48 @@ public class MainStatsManager implements Runnable{
 		return false;
 	}
 
+	/**
+	 * Send the overhead statistics of the Insight library for the current session to the server.
+	 * 
+	 * @return success
+	 */
+	public boolean sendSelfStatsMessage() {
+		try {
+			return sendMessageToServer(SelfStats.getSelfStatsString(JOIN_DELIM), SELF_STATS_INFO, false, -1);
+		} catch (Exception e) {
+			Log.e(TAG, "Error while sending self stats message: " + e.getMessage());
+		}
+
+		return false;
+	}
+
+	/**
+	 * Send the coalesced battery summary to the server, if there were any battery changes
+	 * since the last summary.
+	 * 
+	 * @return success
+	 */
+	public boolean sendBatterySummaryMessage() {
+		try {
+			String summary = batteryEstimator.getSummaryString(JOIN_DELIM);
+			
+			if (summary != null) {
+				return sendMessageToServer(summary, BATTERY_SUMMARY_INFO, false, -1);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Error while sending battery summary message: " + e.getMessage());
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns whether the stats collection is running, i.e. it wasn't stopped.
+	 */
+	public boolean isSessionRunning() {
+		return this.sessionRunning;
+	}
+
 	/**
 	 * Call this method to stop all the activity from this class.
 	 *
@@ -508,7 +755,13 @@ public class MainStatsManager implements Runnable{
 				resourceInfoGatheringTimer.cancel();
 			}
 			*/
-			resourceThread.interrupt();
+			if (resourceTask != null) {
+				resourceTask.cancel();
+			}
+			
+			if (batterySummaryTask != null) {
+				batterySummaryTask.cancel();
+			}
 		} catch (Exception e) {
 			Log.e(TAG + ": stopStatsCollection", "Exception while cancelling resourceGatheringInfo timer");
 		}
@@ -532,6 +785,16 @@ public class MainStatsManager implements Runnable{
 		} catch (Exception e)	{
 			Log.e(TAG + ": stopStatsCollection", "Exception while unregistering battery receiver: " + e.getMessage());
 		}
+		
+		// Stop the connectivity broadcast receiver.
+		try	{
+			if (connectivityReceiver != null) {
+				this.context.unregisterReceiver(connectivityReceiver);
+				connectivityReceiver = null;
+			}
+		} catch (Exception e)	{
+			Log.e(TAG + ": stopStatsCollection", "Exception while unregistering connectivity receiver: " + e.getMessage());
+		}
 
 		// Stop the TCP connection to the server.
 		try	{
@@ -1032,6 +1295,10 @@ public class MainStatsManager implements Runnable{
 			resourceInfo.second += audioLevel + JOIN_DELIM;
 			resourceInfo.second += audioMaxLevel;
 
+			// Memory footprint information. Appended at the end as the top based RSS/VSS values
+			// above overstate the shared pages and don't cover the managed heap.
+			resourceInfo.second += JOIN_DELIM + memoryStats.sample().getRecordString(JOIN_DELIM);
+
 			// Increase the sequence number.
 			this.sequenceNum ++;
 
@@ -1048,23 +1315,21 @@ public class MainStatsManager implements Runnable{
 	}
 	
 	/**
-	 * Run a thread to obtain the resource consumption statistics periodically.
+	 * Obtains the resource consumption statistics. Run periodically on the sender thread of the
+	 * InsightScheduler, as it waits for top and sends to the server.
 	 * 
 	 * @author Ashish Patro
 	 */
-	private class ResourceThread implements Runnable {
-
-		private final int resourceMeasurementInterval; 
-
-		public ResourceThread(int resourceMeasurementInterval) {
-			this.resourceMeasurementInterval = resourceMeasurementInterval; 
-		}
+	private class ResourceTask implements Runnable {
 
 		public void run() {
 			try {
-				Thread.sleep(Constants.INIT_SLEEP_TIME);
+				// Attribute the battery drain to the current network type.
+				batteryEstimator.onStateChanged(PowerStatePolicy.isScreenOn(),
+						Utils.getActiveNetworkType(context));
 
-				while (true) {
+				// Stop sampling if Insight exceeded its overhead budget.
+				if (!SelfStats.isThrottled()) {
 					//Log.e(TAG, "Calling getResourceUsageStats");
 					Pair<Integer, String> resourceInfo = getResourceUsageStats();
 
@@ -1072,29 +1337,28 @@ public class MainStatsManager implements Runnable{
 						sendMessageToServer(resourceInfo.second,
 								RESOURCE_INFO, true, resourceInfo.first);
 					}
-					
-					try {
-						if (!isApplicationUidSent && InsightLib.getApplicationCharID() != null) {
-							Thread.sleep(Constants.INIT_SLEEP_TIME);
-							
-							sendMessageToServer(InsightLib.getApplicationCharID(),
-									APPUID_INFO, false, -1);
-							isApplicationUidSent = true;
-						}
-					} catch (Exception e) {
-						Log.e(TAG, "Exception while sending application UID.. "); // + e);						
-					}
+				}
 
-					Thread.sleep(resourceMeasurementInterval);
+				try {
+					if (!isApplicationUidSent && InsightLib.getApplicationCharID() != null) {
+						sendMessageToServer(InsightLib.getApplicationCharID(),
+								APPUID_INFO, false, -1);
+						isApplicationUidSent = true;
+					}
+				} catch (Exception e) {
+					Log.e(TAG, "Exception while sending application UID.. "); // + e);						
 				}
 			} catch (Exception e) {
-				Log.e(TAG, "Exception in resource info thread: " + e.getMessage());						
+				Log.e(TAG, "Exception in resource info task: " + e.getMessage());						
 			}
 		}
 	}
 
 	/**
 	 * Uses a broadcast receiver to passively hear for battery status changed broadcasts.
+	 * Only the first battery state of the session is sent to the server, on the sender thread of
+	 * the InsightScheduler. The later changes are fed to the drain estimator and reported in the
+	 * coalesced battery summaries.
 	 * 
 	 * @author Ashish Patro
 	 */
@@ -1126,12 +1390,25 @@ public class MainStatsManager implements Runnable{
 				this.sequenceNum ++;
 
 				/**
-				 *  Only send the information to the server if the battery level has
-				 *  changed or the devicePlug status is changed.
+				 *  Only record the information if the battery level has
+				 *  changed or the devicePlug status is changed. Only the first state
+				 *  is sent right away, the rest are sent in the battery summaries.
 				 *  This has been done to reduce the message overhead.
 				 */
 				if (currLevel != this.prevLevel || currPlugged != this.prevPlugged) {
-					String batteryInfo = intent.getIntExtra("level", -1) + JOIN_DELIM
+					batteryEstimator.addSample(currLevel, intent.getIntExtra("scale", -1),
+							intent.getIntExtra("temperature", -1), intent.getIntExtra("voltage", -1),
+							intent.getIntExtra("health", -1), intent.getStringExtra("technology"),
+							currPlugged, PowerStatePolicy.isScreenOn(), Utils.getActiveNetworkType(context));
+					
+					this.prevLevel = currLevel;
+					this.prevPlugged = currPlugged;
+					
+					if (this.sequenceNum > 1) {
+						return;
+					}
+					
+					final String batteryInfo = intent.getIntExtra("level", -1) + JOIN_DELIM
 					+ intent.getIntExtra("scale", -1) + JOIN_DELIM
 					+ intent.getIntExtra("temperature", -1) + JOIN_DELIM
 					+ intent.getIntExtra("voltage", -1) + JOIN_DELIM
@@ -1144,10 +1421,14 @@ public class MainStatsManager implements Runnable{
 					//batteryInfo = MEESAGE_PREAMBLE + JOIN_DELIM + BATTERY_INFO + JOIN_DELIM + this.deviceID + JOIN_DELIM +
 					//this.sessionId + JOIN_DELIM + this.sequenceNum + JOIN_DELIM + batteryInfo; 
 
-					sendMessageToServer(batteryInfo, BATTERY_INFO, true, this.sequenceNum);
+					// Sent on the sender thread, as the receiver runs on the main thread.
+					final int batterySequenceNum = this.sequenceNum;
 					
-					this.prevLevel = currLevel;
-					this.prevPlugged = currPlugged;
+					InsightScheduler.scheduleOnce(new Runnable() {
+						public void run() {
+							sendMessageToServer(batteryInfo, BATTERY_INFO, true, batterySequenceNum);
+						}
+					}, 0, true);
 				} else {
 					//Log.i(TAG, "Skipping battery update to server...");
 				}
@@ -1158,7 +1439,8 @@ public class MainStatsManager implements Runnable{
 	}
 
 	/**
-	 * Used to obtain the screen status, whether the screen is on/off.
+	 * Used to obtain the screen status, whether the screen is on/off. The status is also passed
+	 * to the PowerStatePolicy to pause the measurements while the screen is off.
 	 * 
 	 * @author Ashish Patro
 	 */
@@ -1173,12 +1455,27 @@ public class MainStatsManager implements Runnable{
 			} else if (intent.getAction().equals(Intent.ACTION_SCREEN_ON)) {
 				isScreenOn = true;
 			}
+			
+			PowerStatePolicy.setScreenOn(isScreenOn);
+			batteryEstimator.onStateChanged(isScreenOn, Utils.getActiveNetworkType(context));
 		}
 
 		public boolean isScreenOn() {
 			return isScreenOn;
 		}
 	}
+	
+	/**
+	 * Used to learn about the connectivity changes, on which the network interfaces may come
+	 * and go.
+	 */
+	private class ConnectivityReceiver extends BroadcastReceiver {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			InsightLib.onConnectivityChanged();
+		}
+	}
 
 	/**
 	 * This class is used to run a thread the receives the TCP keep alive messages. 
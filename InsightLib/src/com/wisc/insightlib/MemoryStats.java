@@ -0,0 +1,222 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.lang.reflect.Method;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Samples the memory footprint of the application process. The proportional (PSS), unique (USS)
+ * and swapped memory are read from /proc/self/smaps_rollup (or /proc/self/smaps on older kernels),
+ * which unlike the RSS reported by top does not charge shared pages to the application. The managed
+ * heap usage and the garbage collector activity are also captured.
+ */
+public class MemoryStats {
+	/**
+	 * Constants.
+	 */
+	private static final String TAG = "MemoryStats";
+	private static final String SMAPS_ROLLUP_FILE = "/proc/self/smaps_rollup";
+	private static final String SMAPS_FILE = "/proc/self/smaps";
+	private static final long KB = 1024;
+
+	/**
+	 * Set to false once smaps_rollup is found to be missing, so that we don't retry it on every sample.
+	 */
+	private boolean isRollupAvailable = true;
+
+	/**
+	 * The GC counters read during the previous sample. Used to report the per-interval deltas.
+	 */
+	private long prevGcCount = -1;
+	private long prevGcTimeMs = -1;
+
+	/**
+	 * Debug.getRuntimeStat() is only available on the newer platforms, so it is looked up once using
+	 * reflection. Null if the runtime doesn't expose the GC statistics.
+	 */
+	private Method getRuntimeStatMethod = null;
+
+	public MemoryStats() {
+		try {
+			getRuntimeStatMethod = Debug.class.getMethod("getRuntimeStat", String.class);
+		} catch (Exception e) {
+			getRuntimeStatMethod = null;
+		}
+	}
+
+	/**
+	 * Take a new sample of the memory usage of the process.
+	 *
+	 * @return The memory record. Fields which couldn't be read are set to -1.
+	 */
+	public Record sample() {
+		Record record = new Record();
+
+		if (isRollupAvailable) {
+			isRollupAvailable = readSmaps(SMAPS_ROLLUP_FILE, record);
+		}
+
+		if (!isRollupAvailable) {
+			readSmaps(SMAPS_FILE, record);
+		}
+
+		Runtime runtime = Runtime.getRuntime();
+		record.heapUsedKb = (runtime.totalMemory() - runtime.freeMemory()) / KB;
+		record.heapMaxKb = runtime.maxMemory() / KB;
+
+		long gcCount = readRuntimeStat("art.gc.gc-count");
+		long gcTimeMs = readRuntimeStat("art.gc.gc-time");
+
+		if (gcCount >= 0 && prevGcCount >= 0) {
+			record.gcCountDelta = gcCount - prevGcCount;
+		}
+
+		if (gcTimeMs >= 0 && prevGcTimeMs >= 0) {
+			record.gcTimeDeltaMs = gcTimeMs - prevGcTimeMs;
+		}
+
+		prevGcCount = gcCount;
+		prevGcTimeMs = gcTimeMs;
+
+		return record;
+	}
+
+	/**
+	 * Sum up the Pss, Private_Clean, Private_Dirty and Swap fields of the input smaps file. The
+	 * rollup file contains a single entry while the smaps file contains one entry per mapping.
+	 *
+	 * @param fileName
+	 * @param record - Record to be updated.
+	 *
+	 * @return True if the file was read successfully, false otherwise.
+	 */
+	private boolean readSmaps(String fileName, Record record) {
+		BufferedReader reader = null;
+
+		try {
+			reader = new BufferedReader(new FileReader(fileName), 8192);
+
+			long pss = 0, uss = 0, swap = 0;
+			String text = null;
+
+			while ((text = reader.readLine()) != null) {
+				if (text.startsWith("Pss:")) {
+					pss += parseKbValue(text);
+				} else if (text.startsWith("Private_Clean:") || text.startsWith("Private_Dirty:")) {
+					uss += parseKbValue(text);
+				} else if (text.startsWith("Swap:")) {
+					swap += parseKbValue(text);
+				}
+			}
+
+			record.pssKb = pss;
+			record.ussKb = uss;
+			record.swapKb = swap;
+
+			return true;
+		} catch (Exception e) {
+			Log.w(TAG, "Couldn't read " + fileName + ": " + e.getMessage());
+			return false;
+		} finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "Exception while closing " + fileName);
+			}
+		}
+	}
+
+	/**
+	 * Parse the number from a smaps line of the format "Name:     1234 kB".
+	 *
+	 * @param line
+	 *
+	 * @return number
+	 */
+	private static long parseKbValue(String line) {
+		long value = 0;
+
+		for (int i = line.indexOf(':') + 1; i < line.length(); i++) {
+			char c = line.charAt(i);
+
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+			} else if (value > 0) {
+				break;
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * Read the input runtime statistic, if the runtime exposes it.
+	 *
+	 * @param statName
+	 *
+	 * @return value of the statistic, or -1 if not available.
+	 */
+	private long readRuntimeStat(String statName) {
+		if (getRuntimeStatMethod == null) {
+			return -1;
+		}
+
+		try {
+			Object value = getRuntimeStatMethod.invoke(null, statName);
+
+			if (value != null) {
+				return Long.parseLong(value.toString());
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Couldn't read runtime stat " + statName);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * A single memory sample. All the memory values are in KB.
+	 */
+	public static class Record {
+		public long pssKb = -1;
+		public long ussKb = -1;
+		public long swapKb = -1;
+		public long heapUsedKb = -1;
+		public long heapMaxKb = -1;
+		public long gcCountDelta = -1;
+		public long gcTimeDeltaMs = -1;
+
+		/**
+		 * Returns the record fields joined using the input delimiter.
+		 *
+		 * @param delim
+		 *
+		 * @return formatted record string.
+		 */
+		public String getRecordString(String delim) {
+			return pssKb + delim + ussKb + delim + swapKb + delim +
+				heapUsedKb + delim + heapMaxKb + delim +
+				gcCountDelta + delim + gcTimeDeltaMs;
+		}
+	}
+}
@@ -15,14 +15,7 @@
 
 package com.wisc.insightlib;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
-import java.util.Random;
-import java.util.Vector;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import android.os.SystemClock;
 import android.util.Log;
@@ -38,7 +31,8 @@ public class NetworkTrafficStats {
 	private static String TAG = "NetworkTrafficStats";
 	
 	/**
-	 * Save the start time of initialization.
+	 * Save the start time (elapsed realtime) of initialization. The downloads are timestamped
+	 * with the milliseconds since this time.
 	 */
 	private long startTime;
 	
@@ -48,14 +42,22 @@ public class NetworkTrafficStats {
 	private long packageUid;
 	
 	/**
-	 * Maintains a map for data transfer vs time taken. 
+	 * Tracks the downloads in flight and the completed downloads not yet reported.
 	 */
-	private Vector<Triplet<Pair<Long, Long>, Long, Long>> downloadTransferList;
+	private final DownloadTracker downloadTracker;
 	
 	/**
-	 * Used for serialized access to downloadTransferList;
+	 * Samples the throughput of each network interface.
 	 */
-	private final Lock lock = new ReentrantLock();
+	private final ThroughputSampler throughputSampler;
+	
+	/**
+	 * Keeps the interface counter files open, and the app's counter files (under
+	 * /proc/uid_stat).
+	 */
+	private final InterfaceCounterRegistry counterRegistry = new InterfaceCounterRegistry();
+	private final CounterFile uidTxFile;
+	private final CounterFile uidRxFile;
 	
 	/**
 	 * Maintains information about the currently running measurement.
@@ -73,21 +75,23 @@ public class NetworkTrafficStats {
 	private boolean isInitalEventCaptured = false;
 
 	/**
-	 * Variables for maintaining download state.
+	 * Stores the statistics about TCP data transferred and received.
 	 */
-	Random randomGen = new Random();
-	HashMap<Long, DownloadState> downloadStates = 
-		new HashMap<Long, NetworkTrafficStats.DownloadState>();
+	private long totalTxBytes, totalRxBytes, mobileTxBytes, mobileRxBytes, appTxBytes, appRxBytes;
 	
 	/**
-	 * Stores the statistics about TCP data transferred and received.
+	 * Accumulate the app's traffic counters sampled during the session (the interface
+	 * counters are accumulated per interface by the throughputSampler), and the number of
+	 * sample intervals in which a counter was reset or jumped implausibly. Guarded by
+	 * uidCounterDeltas.
 	 */
-	private long totalTxBytes, totalRxBytes, mobileTxBytes, mobileRxBytes, appTxBytes, appRxBytes;
+	private final CounterDelta[] uidCounterDeltas = {new CounterDelta(), new CounterDelta()};
+	private long suspectIntervals = 0;
 	
 	public NetworkTrafficStats(long packageUid) {
 		this.packageUid = packageUid;
 		
-		startTime = System.currentTimeMillis();
+		startTime = SystemClock.elapsedRealtime();
 		
 		//TODO: Removed
 		/*
@@ -95,21 +99,34 @@ public class NetworkTrafficStats {
 		currMeasurmentTxBytes = 0;
 		currMeasurmentRxBytes = 0;
 		*/
-		downloadTransferList = new Vector<Triplet<Pair<Long, Long>, Long, Long>>();
+		downloadTracker = new DownloadTracker(Constants.MAX_CONCURRENT_DOWNLOADS, startTime);
+		
+		uidTxFile = new CounterFile("/proc/uid_stat/" + packageUid + "/tcp_snd");
+		uidRxFile = new CounterFile("/proc/uid_stat/" + packageUid + "/tcp_rcv");
+		throughputSampler = new ThroughputSampler(counterRegistry, startTime,
+				Constants.MAX_THROUGHPUT_INTERVALS);
 		
-		totalTxBytes = readTotalTxBytes();
-		totalRxBytes = readTotalRxBytes();
-		mobileTxBytes = readMobileTxBytes();
-		mobileRxBytes = readMobileRxBytes();
-		appTxBytes = readUidTxBytes(packageUid);
-		appRxBytes = readUidRxBytes(packageUid);
+		appTxBytes = readUidTxBytes();
+		appRxBytes = readUidRxBytes();
 		
-		if (appTxBytes <= 0 || appRxBytes <= 0) {
-			isUidStatsAvailable = false;
-			appTxBytes = readTotalTxBytes();
-			appRxBytes = readTotalRxBytes();
+		synchronized (counterRegistry) {
+			counterRegistry.readAll();
 			
-			Log.d(TAG, "Not using uid...");
+			totalTxBytes = counterRegistry.getTotal(InterfaceCounterRegistry.TX_BYTES);
+			totalRxBytes = counterRegistry.getTotal(InterfaceCounterRegistry.RX_BYTES);
+			mobileTxBytes = counterRegistry.getMobile(InterfaceCounterRegistry.TX_BYTES);
+			mobileRxBytes = counterRegistry.getMobile(InterfaceCounterRegistry.RX_BYTES);
+			
+			if (appTxBytes <= 0 || appRxBytes <= 0) {
+				isUidStatsAvailable = false;
+				appTxBytes = totalTxBytes;
+				appRxBytes = totalRxBytes;
+				
+				Log.d(TAG, "Not using uid...");
+			}
+			
+			// The first samples, setting the base values.
+			sampleTrafficCounters(startTime, throughputSampler.sample(startTime));
 		}
 		
 		// TODO: Currently forced to keep the non-network code here. Refactor later.
@@ -148,277 +165,228 @@ public class NetworkTrafficStats {
 	}
 	
 	public void endSession() {
-		totalTxBytes = readTotalTxBytes() - totalTxBytes;
-		totalRxBytes = readTotalRxBytes() - totalRxBytes;
-		mobileTxBytes = readMobileTxBytes() - mobileTxBytes;
-		mobileRxBytes = readMobileRxBytes() - mobileRxBytes;
-		appTxBytes = readUidTxBytes(packageUid) - appTxBytes;
-		appRxBytes = readUidRxBytes(packageUid) - appRxBytes;
-		
-		if (totalTxBytes < 0) {
-			totalTxBytes = 0;
-		}
-		
-		if (totalRxBytes < 0) {
-			totalRxBytes = 0;
-		}
+		long now = SystemClock.elapsedRealtime();
 		
-		if (mobileTxBytes < 0) {
-			mobileTxBytes = 0;
+		// The session totals are the sums of the per sample increments, so that a counter
+		// reset or wrap during the session doesn't zero or skew them.
+		synchronized (counterRegistry) {
+			counterRegistry.readAll();
+			sampleTrafficCounters(now, throughputSampler.endSession(now));
+			
+			totalTxBytes = throughputSampler.getTotal(InterfaceCounterRegistry.TX_BYTES);
+			totalRxBytes = throughputSampler.getTotal(InterfaceCounterRegistry.RX_BYTES);
+			mobileTxBytes = throughputSampler.getMobileTotal(InterfaceCounterRegistry.TX_BYTES);
+			mobileRxBytes = throughputSampler.getMobileTotal(InterfaceCounterRegistry.RX_BYTES);
+			
+			if (isUidStatsAvailable) {
+				synchronized (uidCounterDeltas) {
+					appTxBytes = uidCounterDeltas[0].getTotal();
+					appRxBytes = uidCounterDeltas[1].getTotal();
+				}
+			} else {
+				appTxBytes = totalTxBytes;
+				appRxBytes = totalRxBytes;
+			}
 		}
 		
-		if (mobileRxBytes < 0) {
-			mobileRxBytes = 0;
+		closeCounterFiles();
+	}
+	
+	/**
+	 * Accumulate the increments of the app's traffic counters since the previous sample, and
+	 * count the suspect sample intervals. Called right after sampling the interface counters
+	 * with the throughputSampler.
+	 * 
+	 * @param now - The current time (elapsed realtime).
+	 * @param isInterfaceSuspect - Whether an interface counter was reset or jumped
+	 * implausibly in the sample.
+	 */
+	private void sampleTrafficCounters(long now, boolean isInterfaceSuspect) {
+		synchronized (uidCounterDeltas) {
+			boolean isSuspect = isInterfaceSuspect;
+			
+			if (isUidStatsAvailable) {
+				isSuspect |= updateUidCounter(uidCounterDeltas[0], uidTxFile, now);
+				isSuspect |= updateUidCounter(uidCounterDeltas[1], uidRxFile, now);
+			}
+			
+			if (isSuspect) {
+				suspectIntervals++;
+			}
 		}
+	}
+	
+	/**
+	 * Accumulate the increment of the uid counter, unless it can't be read.
+	 * 
+	 * @return whether the counter was reset or jumped implausibly.
+	 */
+	private static boolean updateUidCounter(CounterDelta counterDelta, CounterFile file, long now) {
+		long value = readUidCounter(file);
 		
-		if (appTxBytes < 0) {
-			appTxBytes = 0;
+		if (value == InterfaceCounterRegistry.UNREADABLE) {
+			return false;
 		}
 		
-		if (appRxBytes < 0) {
-			appRxBytes = 0;
-		}
+		counterDelta.update(value, now);
+		return counterDelta.isSuspect();
 	}
 	
 	/**
-	 * Returns a formatted string about the download statistics.
+	 * Append the download statistics to the writer.
 	 * 
-	 * @return download stats string.
+	 * @param out
 	 */
-	public String getDownloadStatsString() {
-		StringBuilder downloadStatsString = new StringBuilder();
-
+	public void appendDownloadStats(StatsWriter out) {
+		int start = out.length();
+		
 		try {
-			lock.lock();
-			
-			for (int i = 0; i < downloadTransferList.size(); i++) {
-				downloadStatsString.append(downloadTransferList.elementAt(i).first.first + "#" + 
-						downloadTransferList.elementAt(i).first.second + "#" +
-						downloadTransferList.elementAt(i).value1 + "#" +
-						downloadTransferList.elementAt(i).value2 + "@");
-			}
-			
-			resetDownloadTransferList();
+			downloadTracker.appendCompletedStats(out, SystemClock.elapsedRealtime());
 		} catch (Exception ex) {
 			Log.e(TAG, "An exception occured while creating the download statistics string: ", ex);
-			downloadStatsString = new StringBuilder();
+			out.setLength(start);
 		}
+	}
+	
+	/**
+	 * Append the throughput statistics of the network interfaces to the writer.
+	 * 
+	 * @param out
+	 */
+	public void appendThroughputStats(StatsWriter out) {
+		throughputSampler.appendThroughputStats(out);
+	}
+	
+	/**
+	 * Append the number of downloads abandoned and of throughput intervals dropped so far in
+	 * the session to the writer.
+	 * 
+	 * @param out
+	 */
+	public void appendOverflowStats(StatsWriter out) {
+		out.append(downloadTracker.getAbandonedDownloads()).append('#')
+			.append(throughputSampler.getDroppedIntervals());
+	}
+	
+	/**
+	 * Sample the interface and traffic counters, reading each counter once. Run periodically.
+	 */
+	public void sampleThroughput() {
+		long now = SystemClock.elapsedRealtime();
 		
 		try {
-			lock.unlock();
+			synchronized (counterRegistry) {
+				counterRegistry.readAll();
+				sampleTrafficCounters(now, throughputSampler.sample(now));
+			}
 		} catch (Exception e) {
-			Log.e(TAG, "An exception occured while unlocking in getDownloadStatsString: ", e);
+			Log.e(TAG, "Exception while sampling the traffic counters: ", e);
 		}
-
-		return downloadStatsString.toString();
 	}
 	
 	/**
-	 * Returns a formatted string about the aggregate network statistics.
+	 * Append the aggregate network statistics to the writer, ending with the number of sample
+	 * intervals in which a counter was reset or jumped implausibly.
 	 * 
-	 * @return Network stats string 
+	 * @param out
 	 */
-	public String getNetworkStatsString() {
-		return totalTxBytes + "@" + totalRxBytes + "@" +
-		mobileTxBytes + "@" + mobileRxBytes + "@" + 
-		appTxBytes + "@" + appRxBytes;
+	public void appendNetworkStats(StatsWriter out) {
+		long currSuspectIntervals;
+		
+		synchronized (uidCounterDeltas) {
+			currSuspectIntervals = suspectIntervals;
+		}
+		
+		out.append(totalTxBytes).append('@').append(totalRxBytes).append('@')
+			.append(mobileTxBytes).append('@').append(mobileRxBytes).append('@')
+			.append(appTxBytes).append('@').append(appRxBytes).append('@')
+			.append(currSuspectIntervals);
 	}
 	
 	/**
 	 * Used to log the start of a download event (e.g., an image, data, file).
 	 * 
-	 * @return Returns a unique identifier to identify the current download event.
+	 * @return Returns a unique identifier to identify the current download event, or -1 if
+	 * too many downloads are in flight.
 	 */
 	public long downloadStarted() {
-		Long currNum = (Math.abs(randomGen.nextLong()) % 10000);
-		
 		try {
-			lock.lock();
-
-			downloadStates.put(currNum, new DownloadState(readUidTxBytes(packageUid), 
-				readUidRxBytes(packageUid), System.currentTimeMillis()));
-				
-			Log.i(TAG, "Download Started.. " + currNum);
-		} catch (Exception e) {
+			long downloadId = downloadTracker.start(readUidTxBytes(), 
+					readUidRxBytes(), SystemClock.elapsedRealtime());
 			
-			Log.e(TAG, "Exception while starting a new download measurement..");
-		}
-		
-		try {
-			lock.unlock();
+			if (downloadId == DownloadTracker.INVALID_ID) {
+				Log.w(TAG, "Too many downloads in flight..");
+			}
+			
+			return downloadId;
 		} catch (Exception e) {
-			Log.e(TAG, "An exception occured while unlocking in downloadStarted: ", e);
+			Log.e(TAG, "Exception while starting a new download measurement..");
 		}
 		
-		Log.i(TAG, "Return Download Started..");
-		return currNum;
+		return DownloadTracker.INVALID_ID;
 	}
 	
 	/**
-	 * Used to log the end of the input download event 
+	 * Used to log the end of the input download event. The bytes transferred by the app
+	 * during the download are attributed to it, including the bytes of any concurrent
+	 * download.
 	 *
 	 * @param downloadId
 	 */
 	public void downloadEnded(long downloadId) {
 		try {
-
-			if (!downloadStates.containsKey(downloadId)) {
-				Log.w(TAG, "No download present.. " + downloadId);
-				return;
-			}
-			
-			long tmpTimestamp = System.currentTimeMillis();
-			long tmpTxBytes = readUidTxBytes(packageUid);
-			long tmpRxBytes = readUidRxBytes(packageUid);
-			
-			lock.lock();
-			
-			DownloadState downloadState = downloadStates.get(downloadId);
+			long tmpTimestamp = SystemClock.elapsedRealtime();
 			
-			//Log.w(TAG, "" + downloadState.currMeasurmentTimestamp);
-			//Log.w(TAG, "" + downloadState.currMeasurmentTxBytes);
-			//Log.w(TAG, "" + downloadState.currMeasurmentRxBytes);
-			
-			if (downloadState.currMeasurmentRxBytes > 0 || downloadState.currMeasurmentTxBytes > 0) {
-				downloadTransferList.add(new Triplet<Pair<Long, Long>, Long, Long>
-				(new Pair<Long, Long>(tmpTxBytes - downloadState.currMeasurmentTxBytes,
-						 tmpRxBytes - downloadState.currMeasurmentRxBytes),
-						(tmpTimestamp - startTime) / 1000,
-						tmpTimestamp - downloadState.currMeasurmentTimestamp));
+			if (!downloadTracker.end(downloadId, readUidTxBytes(),
+					readUidRxBytes(), tmpTimestamp, false, -1)) {
+				Log.w(TAG, "No download present.. " + downloadId);
 			}
-
-			downloadStates.remove(downloadId);
-
-			Log.w(TAG, "Download Ended.. " + downloadId); //: " + currMeasurmentTimestamp);
 		} catch (Exception e) {
 			Log.e(TAG, "Exception while ending a download measurement..");
 		}
-
+	}
+	
+	/**
+	 * Used to log the end of the input download event, with the bytes transferred by the
+	 * download itself (e.g., counted on its streams) and its time to first byte.
+	 *
+	 * @param downloadId
+	 * @param txBytes
+	 * @param rxBytes
+	 * @param timeToFirstByte - msec, or -1 if unknown.
+	 */
+	public void downloadEnded(long downloadId, long txBytes, long rxBytes, long timeToFirstByte) {
 		try {
-			lock.unlock();
+			if (!downloadTracker.end(downloadId, txBytes, rxBytes,
+					SystemClock.elapsedRealtime(), true, timeToFirstByte)) {
+				Log.w(TAG, "No download present.. " + downloadId);
+			}
 		} catch (Exception e) {
-			Log.e(TAG, "An exception occured while unlocking in downloadEnded: ", e);
+			Log.e(TAG, "Exception while ending a download measurement..");
 		}
 	}
 	
-	
 	/**
-	 * Reset the download event information. 
+	 * Free the slots of the completed and abandoned downloads. Run periodically.
 	 */
-	private void resetDownloadTransferList() {
+	public void sweepDownloads() {
 		try {
-			lock.lock();
-
-			downloadTransferList.clear();
-			downloadStates.clear();
+			downloadTracker.sweep(SystemClock.elapsedRealtime());
 		} catch (Exception e) {
-			Log.e(TAG, "Exception in resetDownloadEnded..");
+			Log.e(TAG, "Exception while sweeping the downloads: ", e);
 		}
-
-		try {
-			lock.unlock();
-		} catch (Exception e) {
-			Log.e(TAG, "An exception occured while unlocking in resetDownloadEnded: ", e);
-		}	
 	}
 
-	/**
-	 * Return the current value of the input network attribute
-	 * 
-	 * @param whatStat - the statistic for which the current value is queried
-	 * 
-	 * @return the value of the input statistic
-	 */
-	private static long getTotalStat(String whatStat) {
-        File netdir = new File("/sys/class/net");
-
-        File[] nets = netdir.listFiles();
-        if (nets == null) {
-            return 0;
-        }
-        
-        long total = 0;
-        StringBuffer strbuf = new StringBuffer();
-        
-        for (File net : nets) {
-        	// Don't use statistics from the localhost interface.
-        	if (net.getPath().endsWith("/lo")) {
-        		//Log.i(TAG, "getTotalStat: " + "Skipping " + net.getPath());
-        		continue;
-        	}
-        	//Log.i(TAG, "getTotalStat: " + "Using: " + net.getPath());
-        	
-            strbuf.append(net.getPath()).append(File.separator).append("statistics")
-                    .append(File.separator).append(whatStat);
-            
-            total += Utils.getNumberFromFile(strbuf.toString());
-            strbuf.setLength(0);
-        }
-        
-        return total;
-    }
-	
-	/**
-     * Returns the array of two possible File locations for a given
-     * statistic.
-     */
-    private static File[] mobileFiles(String whatStat) {
-        // Note that we stat them at runtime to see which is
-        // available, rather than here, to guard against the files
-        // coming & going later as modules shut down (e.g. airplane
-        // mode) and whatnot.  The runtime stat() isn't expensive compared
-        // to the previous charset conversion that happened before we
-        // were reusing File instances.
-        File[] files = new File[2];
-        
-        files[0] = new File("/sys/class/net/rmnet0/statistics/" + whatStat);
-        files[1] = new File("/sys/class/net/ppp0/statistics/" + whatStat);
-        
-        return files;
-    }
-    
-    /**
-     * Take a set of possible input files containing the desired statistics. Return the value within the first valid input file.
-     * 
-     * @param files
-     * 
-     * @return The value within the input input files.
-     */
-    private static long getMobileStat(File[] files) {
-        for (int i = 0; i < files.length; i++) {
-            File file = files[i];
-            
-            if (!file.exists()) {
-                continue;
-            }
-            
-            try {
-                new RandomAccessFile(file, "r");
-                return Utils.getNumberFromFile(file.getAbsolutePath());
-            } catch (IOException e) {
-                Log.e(TAG, "Exception opening TCP statistics file " + file.getAbsolutePath(), e);
-            }
-        }
-        
-        return 0L;
-    }
-
     /**
     *  Get total number of transmitted bytes received through rmnet0 or ppp0.
     *
     * @return number of transmitted bytes through rmnet0 or ppp0
     */
-    public static long readMobileTxBytes() {
-    	return getMobileStat(mobileFiles("tx_bytes"));
-    }
-
-   /**
-    *  Get total number of received bytes received through rmnet0 or ppp0.
-    *
-    * @return number of received bytes through rmnet0 or ppp0
-    */
-    private long readMobileRxBytes() {
-    	return getMobileStat(mobileFiles("rx_bytes"));
+    public long readMobileTxBytes() {
+    	synchronized (counterRegistry) {
+    		counterRegistry.readAll();
+    		return counterRegistry.getMobile(InterfaceCounterRegistry.TX_BYTES);
+    	}
     }
 	
     /**
@@ -427,7 +395,10 @@ public class NetworkTrafficStats {
      * @return number of transmitted bytes.
      */
 	private long readTotalTxBytes() {
-		return getTotalStat("tx_bytes");
+		synchronized (counterRegistry) {
+			counterRegistry.readAll();
+			return counterRegistry.getTotal(InterfaceCounterRegistry.TX_BYTES);
+		}
 	}
 	
 	/**
@@ -436,7 +407,10 @@ public class NetworkTrafficStats {
      * @return number of received bytes.
      */
 	private long readTotalRxBytes() {
-		return getTotalStat("rx_bytes");
+		synchronized (counterRegistry) {
+			counterRegistry.readAll();
+			return counterRegistry.getTotal(InterfaceCounterRegistry.RX_BYTES);
+		}
 	}
 	
 	/**
@@ -444,10 +418,9 @@ public class NetworkTrafficStats {
      *
      * @return number of transmitted bytes for the uid.
      */
-	private long readUidTxBytes(long uid) {
-		//Log.i(TAG, "readUidTxBytes: Using uid" + uid); 
+	private long readUidTxBytes() {
 		if (isUidStatsAvailable) {
-			return Utils.getNumberFromFile("/proc/uid_stat/" + uid + "/tcp_snd");
+			return Math.max(0, readUidCounter(uidTxFile));
 		} else {
 			//Log.i(TAG, "tx: UID not available");
 			return readTotalTxBytes();
@@ -459,10 +432,9 @@ public class NetworkTrafficStats {
      *
      * @return number of received bytes for the uid.
      */
-	private long readUidRxBytes(long uid) {
-		//Log.i(TAG, "readUidRxBytes: Using uid" + uid);
+	private long readUidRxBytes() {
 		if (isUidStatsAvailable) {
-			return Utils.getNumberFromFile("/proc/uid_stat/" + uid + "/tcp_rcv");
+			return Math.max(0, readUidCounter(uidRxFile));
 		} else {
 			//Log.i(TAG, "rx: UID not available");
 			return readTotalRxBytes();
@@ -470,20 +442,36 @@ public class NetworkTrafficStats {
 	}
 	
 	/**
-	 * Each object stores the number of bytes transmitted and received during a download event (between the Start and End download events).
+	 * Returns the value of the uid counter file, opened on the first read, or
+	 * InterfaceCounterRegistry.UNREADABLE if it can't be read.
 	 * 
-	 * @author Ashish Patro
+	 * @param file
 	 */
-	class DownloadState {
-		public long currMeasurmentTxBytes;
-		public long currMeasurmentRxBytes;
-		public long currMeasurmentTimestamp;
-		
-		public DownloadState(long currMeasurmentTxBytes, long currMeasurmentRxBytes, 
-				long currMeasurmentTimestamp) {
-			this.currMeasurmentTxBytes = currMeasurmentTxBytes;
-			this.currMeasurmentRxBytes = currMeasurmentRxBytes;
-			this.currMeasurmentTimestamp = currMeasurmentTimestamp;
+	private static long readUidCounter(CounterFile file) {
+		try {
+			if (file.open()) {
+				return file.read();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Exception reading " + file.getPath(), e);
 		}
+		
+		return InterfaceCounterRegistry.UNREADABLE;
+	}
+	
+	/**
+	 * Rediscover the network interfaces on the next read, after a connectivity change.
+	 */
+	public void onConnectivityChanged() {
+		counterRegistry.invalidate();
+	}
+	
+	/**
+	 * Close the counter files.
+	 */
+	private void closeCounterFiles() {
+		counterRegistry.close();
+		uidTxFile.close();
+		uidRxFile.close();
 	}
 }
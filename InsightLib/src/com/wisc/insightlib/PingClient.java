@@ -34,8 +34,6 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import com.wisc.insightlib.json.JSONObject;
 
@@ -81,8 +79,7 @@ public class PingClient implements Runnable {
 	private InetAddress serverAddr = null;
 
 	// Threads used to perform the ping measurments with the server.s
-	private Timer pingTimer = null;
-	private PingTimerTask pingTimerThread = null;
+	private InsightScheduler.PeriodicTask pingTask = null;
 	private ReceiveUDP receiveUDPThread = null;
 	private Thread udpThread = null;
 	private ReceiveTCP receiveTCPThread = null;
@@ -205,10 +202,9 @@ public class PingClient implements Runnable {
 			pingInterval = Constants.PING_INTERVAL;
 
 			if (pingInterval > 0) {
-				//Log.v(TAG, "Create ping timer, interval = " + pingInterval);
-				pingTimer = new Timer(true);
-				pingTimerThread = new PingTimerTask(this);
-				pingTimer.schedule(pingTimerThread, Constants.TIMER_START_DELAY, pingInterval);
+				//Log.v(TAG, "Create ping task, interval = " + pingInterval);
+				pingTask = InsightScheduler.schedulePeriodic(new PingTimerTask(this),
+						Constants.TIMER_START_DELAY, pingInterval, true, true);
 			}
 
 			// Send initial UDP ping (for punch-through)
@@ -248,6 +244,7 @@ public class PingClient implements Runnable {
 				}
 
 				tcpCount = tcpSocket.getInputStream().read(receive);
+				SelfStats.packetReceived(tcpCount);
 
 				if (SHOW_DBG) {
 					Log.v(TAG, "readTcpPacket: Read from tcpSocket");
@@ -284,21 +281,16 @@ public class PingClient implements Runnable {
 				}
 
 				if (pingInterval != Constants.PING_INTERVAL)	{
-					if (pingTimerThread != null) {
-						pingTimerThread.cancel();
-					}
-
-					if (pingTimerThread != null) {
-						pingTimer.cancel();
+					if (pingTask != null) {
+						pingTask.cancel();
 					}
 
 					if (pingInterval > 0) {
 						if (SHOW_DBG) {
-							Log.v(TAG, "readTcpPacket: Recreate ping timer, interval = " + pingInterval);
+							Log.v(TAG, "readTcpPacket: Recreate ping task, interval = " + pingInterval);
 						}
-						pingTimer = new Timer();
-						pingTimerThread = new PingTimerTask(this);
-						pingTimer.schedule(pingTimerThread, Constants.TIMER_START_DELAY, pingInterval);
+						pingTask = InsightScheduler.schedulePeriodic(new PingTimerTask(this),
+								Constants.TIMER_START_DELAY, pingInterval, true, true);
 					}
 				}
 				
@@ -313,6 +305,7 @@ public class PingClient implements Runnable {
 					buffer[1] = receive[1];
 					
 					tcpSocket.getOutputStream().write(buffer, 0, tcpCount);
+					SelfStats.packetSent(tcpCount);
 				}	catch (IOException e)	{
 					Log.e(TAG, "getOutputStream IOException");
 					isTcpAlive = false;
@@ -353,20 +346,11 @@ public class PingClient implements Runnable {
 		}
 
 		try {
-			if (pingTimerThread != null) {
-				pingTimerThread.cancel();
+			if (pingTask != null) {
+				pingTask.cancel();
 			}
 		} catch (Exception e)	{
-			Log.e(TAG, "stopCurrentThread: Exception on canceling pingTimerThread: " +
-					e.toString());
-		}
-
-		try {
-			if (pingTimer != null) {
-				pingTimer.cancel();
-			}
-		} catch (Exception e)	{
-			Log.e(TAG, "stopCurrentThread: Exception on canceling pingTimer: " + 
+			Log.e(TAG, "stopCurrentThread: Exception on canceling pingTask: " +
 					e.toString());
 		}
 
@@ -430,6 +414,7 @@ public class PingClient implements Runnable {
 			}
 			
 			tcpSocket.getOutputStream().write(pack);
+			SelfStats.packetSent(pack.length);
 		}	catch (IOException e)	{
 			Log.e(TAG, "sendTCP : tcpSocket.getOutputStream.write failed");
 
@@ -464,6 +449,7 @@ public class PingClient implements Runnable {
 			}
 			
 			udpSocket.send(packet);
+			SelfStats.packetSent(CURRENT_DATA_SIZE);
 		}	catch (IOException e) {
 			Log.e(TAG, "sendUDP : Couldn't get I/O for the connection to: " + serverIP);
 		}	catch (NullPointerException e) {
@@ -772,12 +758,12 @@ public class PingClient implements Runnable {
 }
 
 /**
- * Used to send a TCP and UDP to the measurement server.
+ * Used to send a TCP and UDP to the measurement server. Run periodically by the InsightScheduler.
  * 
  * @author Ashish Patro
  *
  */
-class PingTimerTask extends TimerTask {
+class PingTimerTask implements Runnable {
 	public static final String TAG = "PingTimerTask";
 
 	PingClient mobileStatsCaller = null;
@@ -786,8 +772,12 @@ class PingTimerTask extends TimerTask {
 		mobileStatsCaller = mobileStats;
 	}
 
-	@Override
 	public final void run()	{
+		// Stop pinging if Insight exceeded its overhead budget.
+		if (SelfStats.isThrottled()) {
+			return;
+		}
+		
 		try {
 			sendPing();
 		} catch(Exception e) {
@@ -842,9 +832,18 @@ class ReceiveUDP implements Runnable {
 					Log.e(TAG, "receiveUDP returned FALSE!");
 					return;
 				}
+				
+				long startCpuTime = SelfStats.taskStarted();
 				temp = new byte[512];
 				receive = new byte[512];
 				mobileStatsCaller.constructBasicInfo(temp, 2);
+				SelfStats.taskEnded(startCpuTime);
+				
+				// Stop the ping measurements if Insight exceeded its overhead budget.
+				if (SelfStats.isThrottled()) {
+					mobileStatsCaller.stopCurrentThread("ReceiveUDP: Throttled");
+					return;
+				}
 				//Log.v(TAG, "constructBasicInfo receiveUDP second!");
 				//if(!mobileStatsCaller.doStep()) return;
 			}
@@ -871,6 +870,7 @@ class ReceiveUDP implements Runnable {
 		try	{
 			//Log.v(TAG, "receiveUDP : Trying to receive");
 			udpSocket.receive(tempPacket);
+			SelfStats.packetReceived(tempPacket.getLength());
 		}	catch (IOException e)	{
 			Log.e(TAG, "receiveUDP : IOException " + e);
 			return false;
@@ -897,6 +897,7 @@ class ReceiveUDP implements Runnable {
 
 				tempPacket = new DatagramPacket(buffer, PingClient.CURRENT_DATA_SIZE);
 				udpSocket.send(tempPacket);
+				SelfStats.packetSent(PingClient.CURRENT_DATA_SIZE);
 			}	catch (IOException e)	{
 				Log.e(TAG, "receiveUDP : Couldn't get I/O for the connection...");
 			}	catch (NullPointerException e)	{
@@ -954,10 +955,18 @@ class ReceiveTCP implements Runnable {
 					return;
 				}
 
+				long startCpuTime = SelfStats.taskStarted();
 				temp = new byte[512];
 				receive = new byte[512];
 				mobileStatsCaller.constructBasicInfo(temp, 2);
+				SelfStats.taskEnded(startCpuTime);
 				//Log.v(TAG, "constructBasicInfo receiveTCP second!");
+				
+				// Stop the ping measurements if Insight exceeded its overhead budget.
+				if (SelfStats.isThrottled()) {
+					mobileStatsCaller.stopCurrentThread("ReceiveTCP: Throttled");
+					return;
+				}
 			}
 
 			// If it ever reaches here. We want to make sure that runing variable is false.
@@ -0,0 +1,151 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Tracks whether the screen is on and whether the application is in the foreground. Insight
+ * enters the power save mode while the screen is off or the application is in the background:
+ * the periodic samplers are slowed down or paused and the ping measurements are stopped. The
+ * state changes are applied on the scheduler thread, as the broadcasts and the session callbacks
+ * arrive on the main thread of the application.
+ */
+public class PowerStatePolicy {
+	/**
+	 * Constants.
+	 */
+	private static final String TAG = "PowerStatePolicy";
+
+	/**
+	 * The current screen and application state.
+	 */
+	private static volatile boolean isScreenOn = true;
+	private static volatile boolean isForeground = true;
+
+	/**
+	 * Start time (elapsed realtime) of the current power save period, or -1 if not paused.
+	 */
+	private static long pauseStartTime = -1;
+
+	/**
+	 * Number of the power save periods of the session and their total duration (msec), the
+	 * current period excluded.
+	 */
+	private static long pauseCount = 0;
+	private static long totalPauseDuration = 0;
+
+	/**
+	 * Applies the current state to the library.
+	 */
+	private static final Runnable applyStateTask = new Runnable() {
+		public void run() {
+			InsightLib.applyPowerState();
+		}
+	};
+
+	/**
+	 * Reset the state at the start of a new session.
+	 */
+	public static synchronized void reset() {
+		isScreenOn = true;
+		isForeground = true;
+		pauseStartTime = -1;
+		pauseCount = 0;
+		totalPauseDuration = 0;
+	}
+
+	/**
+	 * Returns whether Insight should be in the power save mode.
+	 *
+	 * @return power save status
+	 */
+	public static boolean isPaused() {
+		return !isScreenOn || !isForeground;
+	}
+
+	public static boolean isScreenOn() {
+		return isScreenOn;
+	}
+
+	/**
+	 * Returns the number of the power save periods of the session, the current one included.
+	 *
+	 * @return pause count
+	 */
+	public static synchronized long getPauseCount() {
+		return pauseStartTime >= 0 ? pauseCount + 1 : pauseCount;
+	}
+
+	/**
+	 * Returns the total duration (msec) of the power save periods of the session, up to now
+	 * for the current one.
+	 *
+	 * @return total pause duration
+	 */
+	public static synchronized long getTotalPauseDuration() {
+		if (pauseStartTime >= 0) {
+			return totalPauseDuration + SystemClock.elapsedRealtime() - pauseStartTime;
+		}
+
+		return totalPauseDuration;
+	}
+
+	/**
+	 * Should be called when the screen is turned on or off.
+	 *
+	 * @param screenOn
+	 */
+	public static void setScreenOn(boolean screenOn) {
+		update(screenOn, isForeground);
+	}
+
+	/**
+	 * Should be called when the application moves to the foreground or to the background.
+	 *
+	 * @param foreground
+	 */
+	public static void setForeground(boolean foreground) {
+		update(isScreenOn, foreground);
+	}
+
+	private static synchronized void update(boolean screenOn, boolean foreground) {
+		boolean wasPaused = isPaused();
+
+		isScreenOn = screenOn;
+		isForeground = foreground;
+
+		boolean paused = isPaused();
+
+		if (wasPaused == paused) {
+			return;
+		}
+
+		if (paused) {
+			pauseStartTime = SystemClock.elapsedRealtime();
+		} else if (pauseStartTime >= 0) {
+			pauseCount++;
+			totalPauseDuration += SystemClock.elapsedRealtime() - pauseStartTime;
+			pauseStartTime = -1;
+		}
+
+		Log.i(TAG, "Power save mode: " + paused + " (screenOn: " + screenOn +
+				", foreground: " + foreground + ")");
+
+		InsightScheduler.scheduleOnce(applyStateTask, 0);
+	}
+}
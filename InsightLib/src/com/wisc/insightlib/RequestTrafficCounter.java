@@ -0,0 +1,91 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.SystemClock;
+
+/**
+ * Counts the bytes sent and received by one request (a download), and the time to its first
+ * received byte, and reports them with InsightLib.downloadEnded() when the request ends, so
+ * that the request is attributed its own traffic only. Shared by the counting streams of the
+ * request. The sent and received bytes are each expected to be counted by one thread at a
+ * time, as a stream is.
+ */
+public class RequestTrafficCounter {
+	private final long downloadId;
+	private final long startTime;
+	private volatile long txBytes = 0;
+	private volatile long rxBytes = 0;
+	private volatile long timeToFirstByte = -1;
+	private final AtomicBoolean isEnded = new AtomicBoolean(false);
+
+	/**
+	 * Start a request, with InsightLib.downloadStarted().
+	 */
+	public RequestTrafficCounter() {
+		this.downloadId = InsightLib.downloadStarted();
+		this.startTime = SystemClock.elapsedRealtime();
+	}
+
+	public void addTxBytes(long numBytes) {
+		if (numBytes > 0) {
+			txBytes += numBytes;
+		}
+	}
+
+	public void addRxBytes(long numBytes) {
+		if (numBytes > 0) {
+			markFirstByte();
+			rxBytes += numBytes;
+		}
+	}
+
+	/**
+	 * Record the time to the first byte, if not recorded yet. Called on the first received
+	 * byte, or when a response is known to have started arriving (e.g., its headers).
+	 */
+	public void markFirstByte() {
+		if (timeToFirstByte < 0) {
+			timeToFirstByte = SystemClock.elapsedRealtime() - startTime;
+		}
+	}
+
+	public long getTxBytes() {
+		return txBytes;
+	}
+
+	public long getRxBytes() {
+		return rxBytes;
+	}
+
+	/**
+	 * Returns the msec from the start of the request to its first received byte, or -1.
+	 */
+	public long getTimeToFirstByte() {
+		return timeToFirstByte;
+	}
+
+	/**
+	 * End the request and report its traffic. Only the first call has an effect.
+	 */
+	public void end() {
+		if (isEnded.compareAndSet(false, true)) {
+			InsightLib.downloadEnded(downloadId, txBytes, rxBytes, timeToFirstByte);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures the overhead of the Insight library itself: the CPU time consumed by its threads, the
+ * bytes allocated by its tasks (if allocation counting is enabled), the traffic exchanged with the
+ * Insight servers and the number of thread wakeups. If the CPU or the bandwidth consumption exceeds
+ * the configured budget, the library throttles itself for the rest of the session.
+ */
+public class SelfStats {
+	/**
+	 * Constants.
+	 */
+	private static final String TAG = "SelfStats";
+	private static final long HOUR_MSEC = 3600L * Constants.SEC;
+	private static final long NSEC_PER_MSEC = 1000000L;
+
+	/**
+	 * Overhead counters for the current session.
+	 */
+	private static final AtomicLong cpuTimeNs = new AtomicLong();
+	private static final AtomicLong allocatedBytes = new AtomicLong();
+	private static final AtomicLong bytesSent = new AtomicLong();
+	private static final AtomicLong bytesReceived = new AtomicLong();
+	private static final AtomicLong packetsSent = new AtomicLong();
+	private static final AtomicLong packetsReceived = new AtomicLong();
+	private static final AtomicLong wakeups = new AtomicLong();
+
+	/**
+	 * Start time of the current session (elapsed realtime).
+	 */
+	private static volatile long sessionStartTime = SystemClock.elapsedRealtime();
+
+	/**
+	 * Set once the library exceeds its budget. Stays set until the next session.
+	 */
+	private static volatile boolean isThrottled = false;
+
+	/**
+	 * Reset the counters at the start of a new session.
+	 */
+	public static void reset() {
+		cpuTimeNs.set(0);
+		allocatedBytes.set(0);
+		bytesSent.set(0);
+		bytesReceived.set(0);
+		packetsSent.set(0);
+		packetsReceived.set(0);
+		wakeups.set(0);
+
+		sessionStartTime = SystemClock.elapsedRealtime();
+		isThrottled = false;
+
+		if (Constants.SELF_STATS_ALLOC_COUNTING) {
+			try {
+				Debug.startAllocCounting();
+			} catch (Exception e) {
+				Log.e(TAG, "Couldn't start allocation counting: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Should be called by an Insight thread when it wakes up to perform some work.
+	 *
+	 * @return The thread CPU time at the start of the task, to be passed to taskEnded().
+	 */
+	public static long taskStarted() {
+		wakeups.incrementAndGet();
+
+		if (Constants.SELF_STATS_ALLOC_COUNTING) {
+			allocatedBytes.addAndGet(-Debug.getThreadAllocSize());
+		}
+
+		return Debug.threadCpuTimeNanos();
+	}
+
+	/**
+	 * Like taskStarted(), for the work that a task hands over to another thread, e.g. the
+	 * location update posted to the looper thread. The work is part of the wakeup of the task,
+	 * which the task already counted, so only its CPU time and allocations are accounted.
+	 *
+	 * @return The thread CPU time at the start of the work, to be passed to taskEnded().
+	 */
+	public static long handoverStarted() {
+		if (Constants.SELF_STATS_ALLOC_COUNTING) {
+			allocatedBytes.addAndGet(-Debug.getThreadAllocSize());
+		}
+
+		return Debug.threadCpuTimeNanos();
+	}
+
+	/**
+	 * Should be called by an Insight thread after completing the work started by taskStarted().
+	 *
+	 * @param startCpuTimeNs - The value returned by the corresponding taskStarted() call.
+	 */
+	public static void taskEnded(long startCpuTimeNs) {
+		long endCpuTimeNs = Debug.threadCpuTimeNanos();
+
+		if (startCpuTimeNs >= 0 && endCpuTimeNs >= startCpuTimeNs) {
+			cpuTimeNs.addAndGet(endCpuTimeNs - startCpuTimeNs);
+		}
+
+		if (Constants.SELF_STATS_ALLOC_COUNTING) {
+			allocatedBytes.addAndGet(Debug.getThreadAllocSize());
+		}
+
+		checkBudget();
+	}
+
+	/**
+	 * Record a packet sent by the library to the Insight servers.
+	 *
+	 * @param numBytes
+	 */
+	public static void packetSent(long numBytes) {
+		if (numBytes > 0) {
+			bytesSent.addAndGet(numBytes);
+			packetsSent.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record a packet received by the library from the Insight servers.
+	 *
+	 * @param numBytes
+	 */
+	public static void packetReceived(long numBytes) {
+		if (numBytes > 0) {
+			bytesReceived.addAndGet(numBytes);
+			packetsReceived.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns whether the library exceeded its CPU or bandwidth budget for the session. The
+	 * periodic samplers, the throughput sampling, the periodic stats reports and the ping
+	 * measurements should stop running in this case. The stats are still sent in the end of
+	 * session message.
+	 *
+	 * @return throttle status
+	 */
+	public static boolean isThrottled() {
+		return isThrottled;
+	}
+
+	/**
+	 * Check the consumption against the configured budgets. The budgets are specified per hour
+	 * and at least an hour worth of budget is allowed so that short sessions are not throttled
+	 * due to the start up work.
+	 */
+	private static void checkBudget() {
+		if (isThrottled) {
+			return;
+		}
+
+		double elapsedHours = Math.max(HOUR_MSEC, SystemClock.elapsedRealtime() - sessionStartTime) / (double) HOUR_MSEC;
+		long cpuBudgetNs = (long) (Constants.SELF_CPU_BUDGET_PER_HOUR * NSEC_PER_MSEC * elapsedHours);
+		long bandwidthBudget = (long) (Constants.SELF_BANDWIDTH_BUDGET_PER_HOUR * elapsedHours);
+
+		if (cpuTimeNs.get() > cpuBudgetNs) {
+			isThrottled = true;
+			Log.w(TAG, "CPU budget exceeded. Throttling Insight for the rest of the session.");
+		} else if (bytesSent.get() + bytesReceived.get() > bandwidthBudget) {
+			isThrottled = true;
+			Log.w(TAG, "Bandwidth budget exceeded. Throttling Insight for the rest of the session.");
+		}
+	}
+
+	/**
+	 * Returns a formatted string containing the overhead statistics of the session: the CPU
+	 * time (msec), the allocated bytes, the bytes and packets sent and received, the wakeups
+	 * per hour, the throttle status, and the number and total duration (msec) of the power save
+	 * periods.
+	 *
+	 * @param delim
+	 *
+	 * @return self statistics string.
+	 */
+	public static String getSelfStatsString(String delim) {
+		checkBudget();
+
+		long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - sessionStartTime);
+		long wakeupsPerHour = (long) (wakeups.get() * (HOUR_MSEC / (double) elapsedMs));
+
+		return (cpuTimeNs.get() / NSEC_PER_MSEC) + delim +
+			(Constants.SELF_STATS_ALLOC_COUNTING ? allocatedBytes.get() : -1) + delim +
+			bytesSent.get() + delim + bytesReceived.get() + delim +
+			packetsSent.get() + delim + packetsReceived.get() + delim +
+			wakeupsPerHour + delim + (isThrottled ? "1" : "0") + delim +
+			PowerStatePolicy.getPauseCount() + delim + PowerStatePolicy.getTotalPauseDuration();
+	}
+}
@@ -0,0 +1,231 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures the latency of timed spans (screen loads, database queries, API calls etc.). The open
+ * spans are kept in a preallocated slot table, and the token returned for a span carries its slot
+ * and the generation of the slot, so that a stale or repeated endSpan() call is ignored. The
+ * latencies are not reported one by one: each span type keeps a ValueSketch of its latencies (in
+ * msec) and counts its spans by the network type at the start and at the end of the span.
+ */
+public class SpanTracker {
+	private static final String TAG = "SpanTracker";
+
+	/**
+	 * Returned by startSpan() when the slot table is full. Ignored by endSpan().
+	 */
+	public static final long INVALID_TOKEN = -1;
+
+	/**
+	 * Number of network types (see Utils.getActiveNetworkType).
+	 */
+	private static final int NUM_NETWORK_TYPES = 4;
+
+	/**
+	 * The open spans. A slot is free if its type is FREE_SLOT.
+	 */
+	private static final int FREE_SLOT = Integer.MIN_VALUE;
+	private final int[] types;
+	private final long[] startTimes;
+	private final int[] startNetworkTypes;
+	private final int[] generations;
+	private final int[] freeSlots;
+	private int numFreeSlots;
+
+	/**
+	 * The latency statistics of each span type since the last report.
+	 */
+	private final LongObjectHashMap<SpanStats> spanStats = new LongObjectHashMap<SpanStats>();
+
+	/**
+	 * The active network type is cached for up to Constants.SPAN_NETWORK_TYPE_MAX_AGE, so that
+	 * starting and ending a span doesn't query the ConnectivityManager every time.
+	 */
+	private final Context context;
+	private int networkType = 0;
+	private long networkTypeTime = -Constants.SPAN_NETWORK_TYPE_MAX_AGE;
+
+	private static class SpanStats {
+		final ValueSketch latencies = new ValueSketch();
+		final long[] networkTransitions = new long[NUM_NETWORK_TYPES * NUM_NETWORK_TYPES];
+		long droppedSpans = 0;
+	}
+
+	/**
+	 * @param context
+	 * @param maxOpenSpans - Maximum number of spans open at the same time.
+	 */
+	public SpanTracker(Context context, int maxOpenSpans) {
+		this.context = context;
+
+		types = new int[maxOpenSpans];
+		startTimes = new long[maxOpenSpans];
+		startNetworkTypes = new int[maxOpenSpans];
+		generations = new int[maxOpenSpans];
+		freeSlots = new int[maxOpenSpans];
+
+		for (int i = 0; i < maxOpenSpans; i++) {
+			types[i] = FREE_SLOT;
+			freeSlots[i] = maxOpenSpans - 1 - i;
+		}
+
+		numFreeSlots = maxOpenSpans;
+	}
+
+	/**
+	 * Start a span of the input type.
+	 *
+	 * @param spanType
+	 *
+	 * @return token to be passed to endSpan(), or INVALID_TOKEN if too many spans are open.
+	 */
+	public synchronized long startSpan(int spanType) {
+		if (numFreeSlots == 0) {
+			getSpanStats(spanType).droppedSpans++;
+			return INVALID_TOKEN;
+		}
+
+		int slot = freeSlots[--numFreeSlots];
+		long now = SystemClock.elapsedRealtime();
+
+		types[slot] = spanType;
+		startTimes[slot] = now;
+		startNetworkTypes[slot] = getNetworkType(now);
+
+		return ((long) generations[slot] << 32) | slot;
+	}
+
+	/**
+	 * End the span denoted by the token and record its latency.
+	 *
+	 * @param token
+	 */
+	public synchronized void endSpan(long token) {
+		int slot = (int) token;
+
+		if (token < 0 || slot >= types.length || generations[slot] != (int) (token >>> 32)
+				|| types[slot] == FREE_SLOT) {
+			return;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		SpanStats stats = getSpanStats(types[slot]);
+
+		stats.latencies.add(now - startTimes[slot]);
+		stats.networkTransitions[startNetworkTypes[slot] * NUM_NETWORK_TYPES + getNetworkType(now)]++;
+
+		freeSlot(slot);
+	}
+
+	private void freeSlot(int slot) {
+		types[slot] = FREE_SLOT;
+		generations[slot] = (generations[slot] + 1) & Integer.MAX_VALUE;
+		freeSlots[numFreeSlots++] = slot;
+	}
+
+	private SpanStats getSpanStats(int spanType) {
+		SpanStats stats = spanStats.get(spanType);
+
+		if (stats == null) {
+			stats = new SpanStats();
+			spanStats.put(spanType, stats);
+		}
+
+		return stats;
+	}
+
+	private int getNetworkType(long now) {
+		if (now - networkTypeTime >= Constants.SPAN_NETWORK_TYPE_MAX_AGE) {
+			int type = Utils.getActiveNetworkType(context);
+			networkType = type >= 0 && type < NUM_NETWORK_TYPES ? type : 1;
+			networkTypeTime = now;
+		}
+
+		return networkType;
+	}
+
+	/**
+	 * Append the spans ended since the previous call to the writer, one row per span type:
+	 * spanType#droppedSpans#transitions#count#sum#min#max#bucketKey:count,...@
+	 * where transitions lists startNetworkType:endNetworkType:count for the observed pairs.
+	 * If all the spans of a type were dropped, the min and max fields are empty.
+	 * The spans open for longer than Constants.MAX_SPAN_DURATION are abandoned and counted as
+	 * dropped. The statistics are reset.
+	 *
+	 * @param out
+	 */
+	public synchronized void appendSpanStats(StatsWriter out) {
+		int start = out.length();
+
+		try {
+			long now = SystemClock.elapsedRealtime();
+
+			for (int slot = 0; slot < types.length; slot++) {
+				if (types[slot] != FREE_SLOT && now - startTimes[slot] > Constants.MAX_SPAN_DURATION) {
+					getSpanStats(types[slot]).droppedSpans++;
+					freeSlot(slot);
+				}
+			}
+
+			for (int slot = 0; slot < spanStats.capacity(); slot++) {
+				SpanStats stats = spanStats.valueAt(slot);
+
+				if (!spanStats.isUsed(slot) ||
+						(stats.latencies.getCount() == 0 && stats.droppedSpans == 0)) {
+					continue;
+				}
+
+				out.append(spanStats.keyAt(slot)).append('#')
+					.append(stats.droppedSpans).append('#');
+
+				boolean isFirst = true;
+
+				for (int i = 0; i < stats.networkTransitions.length; i++) {
+					if (stats.networkTransitions[i] > 0) {
+						if (!isFirst) {
+							out.append(',');
+						}
+
+						out.append(i / NUM_NETWORK_TYPES).append(':')
+							.append(i % NUM_NETWORK_TYPES).append(':')
+							.append(stats.networkTransitions[i]);
+						isFirst = false;
+					}
+				}
+
+				out.append('#');
+				stats.latencies.appendFieldsTo(out);
+				out.append('@');
+
+				// Clean up here. The storage is reused for the next interval.
+				stats.latencies.reset();
+				stats.droppedSpans = 0;
+
+				for (int i = 0; i < stats.networkTransitions.length; i++) {
+					stats.networkTransitions[i] = 0;
+				}
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "An exception occured in appendSpanStats: ", e);
+			out.setLength(start);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A reusable byte buffer holding an outbound message. The fields and the stats sections are
+ * encoded straight into the buffer as UTF-8, and the integers are formatted in place, so that
+ * writing a message neither builds an intermediate String nor copies it with getBytes(). The
+ * buffer grows as needed and is retained across the messages. Not thread safe.
+ */
+public class StatsWriter {
+	private static final int INITIAL_CAPACITY = 4096;
+
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	private int length = 0;
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(buffer.length * 2, length + extra)];
+			System.arraycopy(buffer, 0, newBuffer, 0, length);
+			buffer = newBuffer;
+		}
+	}
+
+	/**
+	 * Append an ASCII character, e.g. one of the delimiters.
+	 *
+	 * @param c
+	 */
+	public StatsWriter append(char c) {
+		if (c >= 0x80) {
+			return append(String.valueOf(c));
+		}
+
+		ensureCapacity(1);
+		buffer[length++] = (byte) c;
+		return this;
+	}
+
+	public StatsWriter append(int value) {
+		return append((long) value);
+	}
+
+	/**
+	 * Append the decimal representation of the value, formatted without allocating.
+	 *
+	 * @param value
+	 */
+	public StatsWriter append(long value) {
+		if (value == Long.MIN_VALUE) {
+			return append("-9223372036854775808");
+		}
+
+		ensureCapacity(20);
+
+		if (value < 0) {
+			buffer[length++] = '-';
+			value = -value;
+		}
+
+		int numDigits = 1;
+
+		for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+			numDigits++;
+		}
+
+		for (int i = length + numDigits - 1; i >= length; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+
+		length += numDigits;
+		return this;
+	}
+
+	/**
+	 * Append the value formatted like StringBuilder.append(double) does.
+	 *
+	 * @param value
+	 */
+	public StatsWriter append(double value) {
+		return append(String.valueOf(value));
+	}
+
+	/**
+	 * Append the message held by another writer.
+	 *
+	 * @param other
+	 */
+	public StatsWriter append(StatsWriter other) {
+		ensureCapacity(other.length);
+		System.arraycopy(other.buffer, 0, buffer, length, other.length);
+		length += other.length;
+		return this;
+	}
+
+	/**
+	 * Append the characters encoded as UTF-8.
+	 *
+	 * @param chars
+	 */
+	public StatsWriter append(CharSequence chars) {
+		if (chars == null) {
+			chars = "null";
+		}
+
+		int numChars = chars.length();
+		ensureCapacity(numChars);
+
+		for (int i = 0; i < numChars; i++) {
+			char c = chars.charAt(i);
+
+			if (c < 0x80) {
+				ensureCapacity(1);
+				buffer[length++] = (byte) c;
+			} else if (c < 0x800) {
+				ensureCapacity(2);
+				buffer[length++] = (byte) (0xC0 | (c >> 6));
+				buffer[length++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < numChars
+					&& Character.isLowSurrogate(chars.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+				ensureCapacity(4);
+				buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				// Unpaired surrogate, encoded as '?' like String.getBytes() does.
+				ensureCapacity(1);
+				buffer[length++] = '?';
+			} else {
+				ensureCapacity(3);
+				buffer[length++] = (byte) (0xE0 | (c >> 12));
+				buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[length++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+
+		return this;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Truncate the message, e.g. to discard a section that failed half way.
+	 *
+	 * @param newLength - Not above length().
+	 */
+	public void setLength(int newLength) {
+		length = newLength;
+	}
+
+	/**
+	 * Returns the number of occurrences of the ASCII character, e.g. of the row delimiter.
+	 *
+	 * @param c
+	 */
+	public int count(char c) {
+		int count = 0;
+
+		for (int i = 0; i < length; i++) {
+			if (buffer[i] == c) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Write the message to the output stream.
+	 *
+	 * @param out
+	 *
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, length);
+	}
+
+	/**
+	 * Start a new message. The buffer is retained.
+	 */
+	public void reset() {
+		length = 0;
+	}
+}
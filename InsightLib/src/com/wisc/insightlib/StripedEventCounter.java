@@ -0,0 +1,174 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free event counters keyed by the event ID. The counters are split into stripes, and each
+ * thread increments the counters in the stripe selected by its thread ID, so that the threads
+ * firing events concurrently rarely touch the same memory. Each stripe is an open addressing
+ * table of atomic keys and counts; a key slot is claimed once and then reused for the rest of
+ * the session, so that an increment neither locks nor allocates. The stripes are summed when the
+ * counts are drained.
+ */
+public class StripedEventCounter {
+	/**
+	 * Marks an unused key slot. Events with this ID are counted in the overflow map.
+	 */
+	private static final int EMPTY = Integer.MIN_VALUE;
+
+	private final AtomicIntegerArray[] keys;
+	private final AtomicLongArray[] counts;
+	private final int stripeMask;
+	private final int slotMask;
+
+	/**
+	 * Counts the events that didn't fit in the stripe tables. Guarded by its own lock.
+	 */
+	private final IntLongHashMap overflowCounts = new IntLongHashMap();
+
+	/**
+	 * @param numStripes - Number of stripes, rounded up to a power of 2.
+	 * @param capacity - Number of event IDs per stripe, rounded up to a power of 2.
+	 */
+	public StripedEventCounter(int numStripes, int capacity) {
+		numStripes = roundUpToPowerOf2(numStripes);
+		capacity = roundUpToPowerOf2(capacity);
+
+		keys = new AtomicIntegerArray[numStripes];
+		counts = new AtomicLongArray[numStripes];
+		stripeMask = numStripes - 1;
+		slotMask = capacity - 1;
+
+		for (int i = 0; i < numStripes; i++) {
+			keys[i] = new AtomicIntegerArray(capacity);
+			counts[i] = new AtomicLongArray(capacity);
+
+			for (int j = 0; j < capacity; j++) {
+				keys[i].set(j, EMPTY);
+			}
+		}
+	}
+
+	private static int roundUpToPowerOf2(int value) {
+		int result = 1;
+
+		while (result < value) {
+			result <<= 1;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Add delta to the counter of the input event.
+	 *
+	 * @param eventID
+	 * @param delta
+	 */
+	public void add(int eventID, long delta) {
+		addToStripe((int) Thread.currentThread().getId() & stripeMask, eventID, delta);
+	}
+
+	/**
+	 * Increment the counters of the first n events of the input array. The stripe is looked up
+	 * once for the whole batch.
+	 *
+	 * @param eventIDs
+	 * @param n
+	 */
+	public void addAll(int[] eventIDs, int n) {
+		int stripe = (int) Thread.currentThread().getId() & stripeMask;
+
+		for (int i = 0; i < n; i++) {
+			addToStripe(stripe, eventIDs[i], 1);
+		}
+	}
+
+	private void addToStripe(int stripe, int eventID, long delta) {
+		AtomicIntegerArray stripeKeys = keys[stripe];
+
+		if (eventID != EMPTY) {
+			int slot = mix(eventID) & slotMask;
+
+			for (int probes = 0; probes <= slotMask; probes++) {
+				int key = stripeKeys.get(slot);
+
+				if (key == eventID || (key == EMPTY && (stripeKeys.compareAndSet(slot, EMPTY, eventID)
+						|| stripeKeys.get(slot) == eventID))) {
+					counts[stripe].addAndGet(slot, delta);
+					return;
+				}
+
+				slot = (slot + 1) & slotMask;
+			}
+		}
+
+		// The stripe is full. Fall back to the locked map.
+		synchronized (overflowCounts) {
+			overflowCounts.add(eventID, delta);
+		}
+	}
+
+	/**
+	 * Spreads the event IDs, which are often small consecutive integers, over the table.
+	 */
+	private static int mix(int value) {
+		value *= 0x9E3779B9;
+		return value ^ (value >>> 16);
+	}
+
+	/**
+	 * Returns the counts accumulated since the previous drain and resets them to zero. The
+	 * increments that race with the drain are reported by the next drain.
+	 *
+	 * @return Map from the event ID to the count. Events with no new occurrences are
+	 * not included.
+	 */
+	public IntLongHashMap drain() {
+		IntLongHashMap result = new IntLongHashMap();
+
+		for (int stripe = 0; stripe < keys.length; stripe++) {
+			for (int slot = 0; slot <= slotMask; slot++) {
+				int key = keys[stripe].get(slot);
+
+				if (key == EMPTY) {
+					continue;
+				}
+
+				long count = counts[stripe].getAndSet(slot, 0);
+
+				if (count != 0) {
+					result.add(key, count);
+				}
+			}
+		}
+
+		synchronized (overflowCounts) {
+			for (int slot = 0; slot < overflowCounts.capacity(); slot++) {
+				if (overflowCounts.isUsed(slot)) {
+					result.add(overflowCounts.keyAt(slot), overflowCounts.valueAt(slot));
+				}
+			}
+
+			overflowCounts.clear();
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,332 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.ArrayList;
+
+import android.util.Log;
+
+/**
+ * Samples the byte and packet counters of each network interface (except the loopback), read
+ * through the InterfaceCounterRegistry, periodically, and summarizes them per time interval of
+ * Constants.THROUGHPUT_INTERVAL: the bytes and packets transferred, the peak and mean throughput
+ * (bytes/sec) and the time the interface was active, i.e. transferred packets between two
+ * samples, which approximates the time the radio was kept up. The closed intervals are kept in
+ * a ring of primitive arrays until they are reported; once the ring is full, the oldest
+ * intervals are dropped.
+ *
+ * The increments of each interface's counters are also summed over the session, overall and
+ * for the mobile interface. Each counter is tracked on its own, so an interface going down or
+ * coming up doesn't look like a reset of a sum.
+ */
+public class ThroughputSampler {
+	private static final String TAG = "ThroughputSampler";
+
+	private static final int RX_BYTES = InterfaceCounterRegistry.RX_BYTES;
+	private static final int TX_BYTES = InterfaceCounterRegistry.TX_BYTES;
+	private static final int RX_PACKETS = InterfaceCounterRegistry.RX_PACKETS;
+	private static final int TX_PACKETS = InterfaceCounterRegistry.TX_PACKETS;
+	private static final int NUM_COUNTERS = InterfaceCounterRegistry.NUM_COUNTERS;
+
+	private static class InterfaceState {
+		final String name;
+		final CounterDelta[] counterDeltas = new CounterDelta[NUM_COUNTERS];
+
+		// The current interval.
+		final long[] deltas = new long[NUM_COUNTERS];
+		long peakRxRate = 0;
+		long peakTxRate = 0;
+		long activeTime = 0;
+
+		InterfaceState(String name) {
+			this.name = name;
+
+			for (int i = 0; i < NUM_COUNTERS; i++) {
+				counterDeltas[i] = new CounterDelta();
+			}
+		}
+	}
+
+	private final InterfaceCounterRegistry counterRegistry;
+	private final ArrayList<InterfaceState> interfaces = new ArrayList<InterfaceState>();
+
+	/**
+	 * The counters and their deltas of the interface being sampled.
+	 */
+	private final long[] counters = new long[NUM_COUNTERS];
+	private final long[] deltas = new long[NUM_COUNTERS];
+
+	/**
+	 * The increments summed over the session, of all the interfaces and of the mobile one,
+	 * and whether a counter was reset or jumped implausibly in the last sample.
+	 */
+	private final long[] sessionTotals = new long[NUM_COUNTERS];
+	private final long[] sessionMobileTotals = new long[NUM_COUNTERS];
+	private boolean isLastSampleSuspect = false;
+
+	/**
+	 * The session start time and the start of the current interval (elapsed realtime), and
+	 * the time of the last sample.
+	 */
+	private final long startTime;
+	private long intervalStart;
+	private long lastSampleTime;
+
+	/**
+	 * The ring of the closed interval summaries, one entry per interface and interval.
+	 */
+	private final int[] ringInterfaces;
+	private final long[] ringIntervalEnds;
+	private final long[] ringDurations;
+	private final long[][] ringDeltas;
+	private final long[] ringPeakRxRates;
+	private final long[] ringPeakTxRates;
+	private final long[] ringActiveTimes;
+	private int ringStart = 0;
+	private int ringSize = 0;
+	private long droppedIntervals = 0;
+
+	/**
+	 * @param counterRegistry - Reads the interface counters.
+	 * @param startTime - The session start time (elapsed realtime).
+	 * @param maxIntervals - Maximum number of interval summaries kept between the reports.
+	 */
+	public ThroughputSampler(InterfaceCounterRegistry counterRegistry, long startTime,
+			int maxIntervals) {
+		this.counterRegistry = counterRegistry;
+		this.startTime = startTime;
+		this.intervalStart = startTime;
+		this.lastSampleTime = startTime;
+
+		ringInterfaces = new int[maxIntervals];
+		ringIntervalEnds = new long[maxIntervals];
+		ringDurations = new long[maxIntervals];
+		ringDeltas = new long[maxIntervals][NUM_COUNTERS];
+		ringPeakRxRates = new long[maxIntervals];
+		ringPeakTxRates = new long[maxIntervals];
+		ringActiveTimes = new long[maxIntervals];
+	}
+
+	/**
+	 * Returns the state of the interface, added if new.
+	 */
+	private InterfaceState getInterfaceState(String name) {
+		for (int i = 0; i < interfaces.size(); i++) {
+			if (interfaces.get(i).name.equals(name)) {
+				return interfaces.get(i);
+			}
+		}
+
+		InterfaceState state = new InterfaceState(name);
+		interfaces.add(state);
+		return state;
+	}
+
+	/**
+	 * Update the current interval with the counters of the interfaces. Run periodically
+	 * every Constants.THROUGHPUT_SAMPLE_INTERVAL, holding the counterRegistry lock, right
+	 * after counterRegistry.readAll().
+	 *
+	 * @param now - The current time (elapsed realtime).
+	 *
+	 * @return whether a counter was reset or jumped implausibly since the previous sample.
+	 */
+	public synchronized boolean sample(long now) {
+		sample(now, false);
+		return isLastSampleSuspect;
+	}
+	
+	/**
+	 * Take a last sample and close the current interval, however short, at the end of the
+	 * session. Called like sample().
+	 *
+	 * @param now - The current time (elapsed realtime).
+	 *
+	 * @return whether a counter was reset or jumped implausibly since the previous sample.
+	 */
+	public synchronized boolean endSession(long now) {
+		sample(now, true);
+		return isLastSampleSuspect;
+	}
+
+	private void sample(long now, boolean closeInterval) {
+		try {
+			long elapsed = now - lastSampleTime;
+			int mobileInterface = counterRegistry.getMobileInterface();
+			isLastSampleSuspect = false;
+
+			for (int i = 0; i < counterRegistry.getNumInterfaces(); i++) {
+				for (int c = 0; c < NUM_COUNTERS; c++) {
+					counters[c] = counterRegistry.getCounter(i, c);
+				}
+
+				sampleInterface(getInterfaceState(counterRegistry.getInterfaceName(i)), now, elapsed);
+
+				for (int c = 0; c < NUM_COUNTERS; c++) {
+					sessionTotals[c] += deltas[c];
+
+					if (i == mobileInterface) {
+						sessionMobileTotals[c] += deltas[c];
+					}
+				}
+			}
+
+			lastSampleTime = now;
+
+			if (closeInterval || now - intervalStart >= Constants.THROUGHPUT_INTERVAL) {
+				closeInterval(now);
+				
+				// Pick up the interfaces that came up without a connectivity change.
+				counterRegistry.invalidate();
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while sampling the interface counters: ", e);
+		}
+	}
+
+	/**
+	 * Update the interface state with the counters just read. A counter that couldn't be read
+	 * is skipped, and its increment is counted on the next successful read.
+	 */
+	private void sampleInterface(InterfaceState state, long now, long elapsed) {
+		// The counters may have been reset (e.g. the interface went down and came back) or wrapped.
+		for (int i = 0; i < NUM_COUNTERS; i++) {
+			if (counters[i] == InterfaceCounterRegistry.UNREADABLE) {
+				deltas[i] = 0;
+				continue;
+			}
+
+			deltas[i] = state.counterDeltas[i].update(counters[i], now);
+			state.deltas[i] += deltas[i];
+			isLastSampleSuspect |= state.counterDeltas[i].isSuspect();
+		}
+
+		if (elapsed > 0) {
+			state.peakRxRate = Math.max(state.peakRxRate, deltas[RX_BYTES] * 1000 / elapsed);
+			state.peakTxRate = Math.max(state.peakTxRate, deltas[TX_BYTES] * 1000 / elapsed);
+
+			if (deltas[RX_PACKETS] > 0 || deltas[TX_PACKETS] > 0) {
+				state.activeTime += elapsed;
+			}
+		}
+	}
+
+	/**
+	 * Move the summaries of the interfaces with any traffic in the current interval to the
+	 * ring, and start a new interval.
+	 */
+	private void closeInterval(long now) {
+		for (int i = 0; i < interfaces.size(); i++) {
+			InterfaceState state = interfaces.get(i);
+
+			if (state.deltas[RX_PACKETS] == 0 && state.deltas[TX_PACKETS] == 0) {
+				continue;
+			}
+
+			if (ringSize == ringInterfaces.length) {
+				ringStart = (ringStart + 1) % ringInterfaces.length;
+				ringSize--;
+				droppedIntervals++;
+			}
+
+			int index = (ringStart + ringSize) % ringInterfaces.length;
+			ringInterfaces[index] = i;
+			ringIntervalEnds[index] = now - startTime;
+			ringDurations[index] = now - intervalStart;
+			System.arraycopy(state.deltas, 0, ringDeltas[index], 0, NUM_COUNTERS);
+			ringPeakRxRates[index] = state.peakRxRate;
+			ringPeakTxRates[index] = state.peakTxRate;
+			ringActiveTimes[index] = state.activeTime;
+			ringSize++;
+
+			for (int j = 0; j < NUM_COUNTERS; j++) {
+				state.deltas[j] = 0;
+			}
+
+			state.peakRxRate = 0;
+			state.peakTxRate = 0;
+			state.activeTime = 0;
+		}
+
+		intervalStart = now;
+	}
+
+	/**
+	 * Append the intervals closed since the previous call to the writer, one row per
+	 * interface and interval:
+	 * interface#intervalEnd#duration#rxBytes#txBytes#rxPackets#txPackets#peakRxRate#peakTxRate#
+	 * meanRxRate#meanTxRate#activeTime@
+	 * The times are in msec (intervalEnd since the start of the session) and the rates in
+	 * bytes/sec. The intervals are removed.
+	 *
+	 * @param out
+	 */
+	public synchronized void appendThroughputStats(StatsWriter out) {
+		int start = out.length();
+
+		try {
+			for (int i = 0; i < ringSize; i++) {
+				int index = (ringStart + i) % ringInterfaces.length;
+				long duration = Math.max(1, ringDurations[index]);
+				long[] intervalDeltas = ringDeltas[index];
+
+				out.append(interfaces.get(ringInterfaces[index]).name).append('#')
+					.append(ringIntervalEnds[index]).append('#')
+					.append(ringDurations[index]).append('#')
+					.append(intervalDeltas[RX_BYTES]).append('#')
+					.append(intervalDeltas[TX_BYTES]).append('#')
+					.append(intervalDeltas[RX_PACKETS]).append('#')
+					.append(intervalDeltas[TX_PACKETS]).append('#')
+					.append(ringPeakRxRates[index]).append('#')
+					.append(ringPeakTxRates[index]).append('#')
+					.append(intervalDeltas[RX_BYTES] * 1000 / duration).append('#')
+					.append(intervalDeltas[TX_BYTES] * 1000 / duration).append('#')
+					.append(ringActiveTimes[index]).append('@');
+			}
+
+			ringStart = 0;
+			ringSize = 0;
+		} catch (Exception e) {
+			Log.e(TAG, "Exception while creating the throughput statistics string: ", e);
+			out.setLength(start);
+		}
+	}
+
+	/**
+	 * Returns the increments of the counter summed over the interfaces and the session.
+	 *
+	 * @param counter - One of the InterfaceCounterRegistry counters.
+	 */
+	public synchronized long getTotal(int counter) {
+		return sessionTotals[counter];
+	}
+
+	/**
+	 * Returns the increments of the counter of the mobile interface summed over the session.
+	 *
+	 * @param counter - One of the InterfaceCounterRegistry counters.
+	 */
+	public synchronized long getMobileTotal(int counter) {
+		return sessionMobileTotals[counter];
+	}
+
+	/**
+	 * Returns the number of interval summaries dropped because the ring was full.
+	 */
+	public synchronized long getDroppedIntervals() {
+		return droppedIntervals;
+	}
+}
@@ -0,0 +1,148 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.HashMap;
+
+/**
+ * Tracks the most frequent strings of an event in fixed memory, using the Space-Saving
+ * algorithm: the strings are counted in a fixed number of counters, and a new string takes over
+ * the counter with the smallest count, inheriting that count as its overestimation error. Any
+ * string occurring more than total/numCounters times is guaranteed to hold a counter. The top k
+ * strings are reported with their approximate counts, and the rest of the occurrences are
+ * reported in an "other" bucket. Not thread safe.
+ */
+public class TopKTracker {
+	private final String[] strings;
+	private final long[] counts;
+	private final HashMap<String, Integer> counterIndexMap;
+	private final int k;
+	private int numCounters = 0;
+	private long total = 0;
+
+	/**
+	 * @param k - Number of strings reported.
+	 * @param numCounters - Number of strings counted, at least k. More counters give more
+	 * accurate counts for the top k strings.
+	 */
+	public TopKTracker(int k, int numCounters) {
+		this.k = k;
+		strings = new String[Math.max(k, numCounters)];
+		counts = new long[strings.length];
+		counterIndexMap = new HashMap<String, Integer>(strings.length * 2);
+	}
+
+	/**
+	 * Count an occurrence of the input string.
+	 *
+	 * @param value
+	 */
+	public void add(String value) {
+		total++;
+		Integer index = counterIndexMap.get(value);
+
+		if (index != null) {
+			counts[index]++;
+			return;
+		}
+
+		int counter;
+
+		if (numCounters < strings.length) {
+			counter = numCounters++;
+		} else {
+			// Replace the string with the smallest count.
+			counter = 0;
+
+			for (int i = 1; i < numCounters; i++) {
+				if (counts[i] < counts[counter]) {
+					counter = i;
+				}
+			}
+
+			counterIndexMap.remove(strings[counter]);
+		}
+
+		strings[counter] = value;
+		counts[counter]++;
+		counterIndexMap.put(value, counter);
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Remove all the strings.
+	 */
+	public void reset() {
+		for (int i = 0; i < numCounters; i++) {
+			strings[i] = null;
+			counts[i] = 0;
+		}
+
+		counterIndexMap.clear();
+		numCounters = 0;
+		total = 0;
+	}
+
+	/**
+	 * Append the top k strings to the writer in the format:
+	 * eventID#total#otherCount#count#string#count#string...@
+	 * with the strings in decreasing order of their count.
+	 *
+	 * @param eventID
+	 * @param out
+	 */
+	public void appendTo(int eventID, StatsWriter out) {
+		// Selection sort of the top k counters. The counters are few.
+		int[] order = new int[numCounters];
+
+		for (int i = 0; i < numCounters; i++) {
+			order[i] = i;
+		}
+
+		int numReported = Math.min(k, numCounters);
+		long otherCount = total;
+
+		for (int i = 0; i < numReported; i++) {
+			int max = i;
+
+			for (int j = i + 1; j < numCounters; j++) {
+				if (counts[order[j]] > counts[order[max]]) {
+					max = j;
+				}
+			}
+
+			int tmp = order[i];
+			order[i] = order[max];
+			order[max] = tmp;
+
+			otherCount -= counts[order[i]];
+		}
+
+		out.append(eventID).append('#')
+			.append(total).append('#')
+			.append(Math.max(0, otherCount));
+
+		for (int i = 0; i < numReported; i++) {
+			out.append('#').append(counts[order[i]])
+				.append('#').append(strings[order[i]]);
+		}
+
+		out.append('@');
+	}
+}
@@ -216,9 +216,11 @@ public class Utils {
 	 * @return number
 	 */
 	public static long getNumberFromFile(String fileName) {
+		BufferedReader reader = null;
+		
 		try {
 			String text = "";
-			BufferedReader reader = new BufferedReader(
+			reader = new BufferedReader(
 					new FileReader(fileName));
 
 			long value = -1;
@@ -231,6 +233,14 @@ public class Utils {
 			Log.e(TAG, e.getMessage());
 
 			return 0;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (Exception e) {
+					Log.e(TAG, "Exception closing " + fileName);
+				}
+			}
 		}
 	}
 	
@@ -252,6 +262,30 @@ public class Utils {
 		}
 	}
 	
+	/**
+	 * Returns the type ID (see getCurrentActiveNetworkType) of the active network, or 0 if
+	 * there is no active network.
+	 * 
+	 * @param mContext
+	 * 
+	 * @return interface type ID.
+	 */
+	public static int getActiveNetworkType(Context mContext) {
+		try {
+			ConnectivityManager connectivityManager = (ConnectivityManager)
+				mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo currentNetworkInfo = connectivityManager.getActiveNetworkInfo();
+			
+			if (currentNetworkInfo != null) {
+				return getCurrentActiveNetworkType(currentNetworkInfo);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "getActiveNetworkType " + e);
+		}
+		
+		return 0;
+	}
+	
 	/**
 	 * Reverse geo-codes the location co-ordinates to determine the country and related information
 	 * for the client.
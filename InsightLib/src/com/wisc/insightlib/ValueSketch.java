@@ -0,0 +1,192 @@
+/* Copyright 2013 Wisconsin Wireless and NetworkinG Systems (WiNGS) Lab, University of Wisconsin Madison.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wisc.insightlib;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable log-linear histogram of the values of an event, along with their count, sum, min
+ * and max. The bucket of a value is given by the sign, the exponent and the top SUB_BUCKET_BITS
+ * mantissa bits of its IEEE-754 representation, so the bucket boundaries are the same on every
+ * device and the sketches can be merged by adding up the bucket counts. The relative error of a
+ * quantile is bounded by 2^-SUB_BUCKET_BITS, and the size of the sketch depends on the range of
+ * the values rather than on their number.
+ *
+ * The bucket key of a value v >= 0 is (doubleToLongBits(v) >>> (52 - SUB_BUCKET_BITS)), and of a
+ * value v < 0 is -key(-v) - 1. The keys are ordered the same way as the values.
+ */
+public class ValueSketch {
+	public static final int SUB_BUCKET_BITS = 4;
+	private static final int SHIFT = 52 - SUB_BUCKET_BITS;
+
+	private long count = 0;
+	private double sum = 0;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+	private final IntLongHashMap buckets = new IntLongHashMap();
+
+	/**
+	 * Add a value to the sketch. NaN values are ignored.
+	 *
+	 * @param value
+	 */
+	public void add(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+
+		count++;
+		sum += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+		buckets.add(getBucketKey(value), 1);
+	}
+
+	/**
+	 * Add all the values of the input sketch to this sketch.
+	 *
+	 * @param other
+	 */
+	public void merge(ValueSketch other) {
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+
+		for (int slot = 0; slot < other.buckets.capacity(); slot++) {
+			if (other.buckets.isUsed(slot)) {
+				buckets.add(other.buckets.keyAt(slot), other.buckets.valueAt(slot));
+			}
+		}
+	}
+
+	public static int getBucketKey(double value) {
+		int key = (int) (Double.doubleToLongBits(Math.abs(value)) >>> SHIFT);
+		return value < 0 ? -key - 1 : key;
+	}
+
+	/**
+	 * Returns the midpoint of the values falling in the input bucket.
+	 */
+	private static double getBucketValue(int key) {
+		int absKey = key < 0 ? -key - 1 : key;
+		double value = (Double.longBitsToDouble((long) absKey << SHIFT) +
+				Double.longBitsToDouble((long) (absKey + 1) << SHIFT)) / 2;
+
+		return key < 0 ? -value : value;
+	}
+
+	/**
+	 * Returns the estimated value at the input quantile.
+	 *
+	 * @param quantile - Between 0 and 1.
+	 *
+	 * @return estimated value, or NaN if the sketch is empty.
+	 */
+	public double getQuantile(double quantile) {
+		if (count == 0) {
+			return Double.NaN;
+		}
+
+		int[] keys = new int[buckets.size()];
+		int numKeys = 0;
+
+		for (int slot = 0; slot < buckets.capacity(); slot++) {
+			if (buckets.isUsed(slot)) {
+				keys[numKeys++] = buckets.keyAt(slot);
+			}
+		}
+
+		Arrays.sort(keys);
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+
+		for (int i = 0; i < numKeys; i++) {
+			seen += buckets.get(keys[i], 0);
+
+			if (seen >= rank) {
+				return Math.max(min, Math.min(max, getBucketValue(keys[i])));
+			}
+		}
+
+		return max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	/**
+	 * Remove all the values. The bucket storage is retained.
+	 */
+	public void reset() {
+		count = 0;
+		sum = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+		buckets.clear();
+	}
+
+	/**
+	 * Append the sketch to the writer in the format:
+	 * eventID#count#sum#min#max#bucketKey:count,bucketKey:count,...@
+	 *
+	 * @param eventID
+	 * @param out
+	 */
+	public void appendTo(int eventID, StatsWriter out) {
+		out.append(eventID).append('#');
+		appendFieldsTo(out);
+		out.append('@');
+	}
+
+	/**
+	 * Append the fields of the sketch to the writer in the format:
+	 * count#sum#min#max#bucketKey:count,bucketKey:count,...
+	 * The min and max fields are left empty for an empty sketch.
+	 *
+	 * @param out
+	 */
+	public void appendFieldsTo(StatsWriter out) {
+		out.append(count).append('#')
+			.append(sum).append('#');
+
+		if (count > 0) {
+			out.append(min).append('#')
+				.append(max).append('#');
+		} else {
+			out.append("##");
+		}
+
+		boolean isFirst = true;
+
+		for (int slot = 0; slot < buckets.capacity(); slot++) {
+			if (buckets.isUsed(slot)) {
+				if (!isFirst) {
+					out.append(',');
+				}
+
+				out.append(buckets.keyAt(slot)).append(':').append(buckets.valueAt(slot));
+				isFirst = false;
+			}
+		}
+	}
+}